@@ -0,0 +1,45 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Benchmark of ChatRoomHandler.broadcastMessage: one encoded message fanned out to every member of a room, with
+// each member's outbox drained afterwards the way its writer would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.dir=")
+public class BroadcastBenchmark {
+    // Number of clients in the room.
+    @Param({"10", "1000", "10000"})
+    private int members;
+
+    private Server.ChatRoomHandler room;
+    private Server.Outbox[] clients;
+    private ByteBuffer message;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    @Setup
+    public void setUp() {
+        room = new Server.ChatRoomHandler("broadcast");
+        clients = new Server.Outbox[members];
+        for (int i = 0; i < members; i++) {
+            clients[i] = new Server.Outbox(() -> { });
+            room.addClient(clients[i]);
+        }
+        message = Server.encodeLine("\n[12:00:00] alice: hello everyone in the room");
+    }
+
+    // Queueing the message on every member's outbox, then draining each into a write buffer as its writer would.
+    @Benchmark
+    public void broadcast(Blackhole blackhole) {
+        room.broadcastMessage(message, null);
+        for (Server.Outbox client : clients) {
+            blackhole.consume(client.drainTo(buffer.clear()));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scaling run for the cluster: for each node count, starts that many event-loop servers as one cluster, each in its
+// own JVM, waits until every node has linked up with every other, then spreads the same load generator run over
+// all of them, so rooms span nodes and messages cross the links. Prints the delivered throughput and the fan-out
+// latency per node count. The nodes share this machine, so the numbers show the cost of the links on one host;
+// spread the nodes over several hosts (-Dchat.cluster.* and -Dchat.load.servers by hand) to measure capacity.
+//
+//     java -cp benchmarks/target/benchmarks.jar chat.ClusterScalingStress [users] [seconds] [node counts, e.g. 1,2,4]
+public class ClusterScalingStress {
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] nodeCounts = (args.length > 2 ? args[2] : "1,2,4").split(",");
+
+        List<String> results = new ArrayList<>();
+        for (String nodeCount : nodeCounts) {
+            int nodes = Integer.parseInt(nodeCount.trim());
+            int[] clientPorts = new int[nodes];
+            String[] linkAddresses = new String[nodes];
+            for (int i = 0; i < nodes; i++) {
+                clientPorts[i] = ServerProcess.freePort();
+                linkAddresses[i] = "127.0.0.1:" + ServerProcess.freePort();
+            }
+
+            // Starting the nodes, each with every other node as a peer.
+            List<ServerProcess> servers = new ArrayList<>();
+            try {
+                StringBuilder servedAt = new StringBuilder();
+                for (int i = 0; i < nodes; i++) {
+                    List<String> peers = new ArrayList<>();
+                    for (int j = 0; j < nodes; j++) {
+                        if (j != i) {
+                            peers.add(linkAddresses[j]);
+                        }
+                    }
+                    servers.add(nodes == 1
+                            ? new ServerProcess(clientPorts[i], "nio")
+                            : new ServerProcess(clientPorts[i], "nio", "-Dchat.cluster.self=" + linkAddresses[i],
+                                    "-Dchat.cluster.peers=" + String.join(",", peers)));
+                    servedAt.append(i == 0 ? "" : ",").append("127.0.0.1:").append(clientPorts[i]);
+                }
+                for (ServerProcess server : servers) {
+                    server.awaitOutput("Server on Port", 1, 30_000);
+                    server.awaitOutput("Cluster node joined", nodes - 1, 30_000);
+                }
+
+                List<String> report = ServerProcess.runLoad(servedAt.toString(), "-Dchat.load.users=" + users,
+                        "-Dchat.load.duration=" + seconds);
+                String result = nodes + (nodes == 1 ? " node:  " : " nodes: ")
+                        + ServerProcess.line(report, "Throughput:") + System.lineSeparator() + "         "
+                        + ServerProcess.line(report, "Fan-out latency");
+                System.out.println(result);
+                results.add(result);
+            } finally {
+                for (ServerProcess server : servers) {
+                    server.close();
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(users + " users for " + seconds + " s per run:");
+        results.forEach(System.out::println);
+    }
+}
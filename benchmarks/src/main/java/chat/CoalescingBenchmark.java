@@ -0,0 +1,103 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of write coalescing at a high message rate: one client sends messages into a room of readers on a
+// loopback NIO server, with the writer woken per message (immediate) or once per 2 ms tick (coalesced). The
+// sender pauses briefly after each message so the readers keep up; flat out, socket back-pressure batches the
+// writes in both modes alike. Besides the message rate, the socket writes per second are reported as the
+// "writes" counter, so writes per message can be compared directly; add -prof gc or -prof perf for allocation
+// and CPU.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CoalescingBenchmark {
+    // Number of reading clients in the room.
+    @Param({"50"})
+    private int readers;
+    // Pause after each message, in nanoseconds; 0 sends flat out.
+    @Param({"0", "20000"})
+    private long pauseNanos;
+
+    private Socket[] sockets;
+    private OutputStream sender;
+    private final byte[] message = "hello everyone in the room\n".getBytes(StandardCharsets.UTF_8);
+
+    // Socket writes made by the server, reported per second next to the message rate.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Writes {
+        public long writes;
+        private long baseline;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            baseline = Server.Metrics.socketWrites.sum();
+            writes = 0;
+        }
+
+        void update() {
+            writes = Server.Metrics.socketWrites.sum() - baseline;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+
+        sockets = new Socket[readers + 1];
+        for (int i = 0; i <= readers; i++) {
+            sockets[i] = server.connect();
+            sockets[i].getOutputStream().write(("client-" + i + "\n/join coalesce\n").getBytes(StandardCharsets.UTF_8));
+            // Every client, the sender included, drains its socket on its own thread for the whole run.
+            InputStream input = sockets[i].getInputStream();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    while (input.read(buffer) >= 0) {
+                        // Discarding the broadcast.
+                    }
+                } catch (IOException e) {
+                    // The benchmark is over.
+                }
+            }, "reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        sender = sockets[0].getOutputStream();
+        // Letting every join complete before measuring.
+        Thread.sleep(500);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.flush.tickMs=0", "-Dchat.rate.client=0", "-Dchat.rate.room=0"})
+    public void immediate(Writes counters) throws IOException {
+        sender.write(message);
+        counters.update();
+        LockSupport.parkNanos(pauseNanos);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.flush.tickMs=2", "-Dchat.rate.client=0", "-Dchat.rate.room=0"})
+    public void coalesced(Writes counters) throws IOException {
+        sender.write(message);
+        counters.update();
+        LockSupport.parkNanos(pauseNanos);
+    }
+}
@@ -0,0 +1,46 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+
+// An event-loop server run inside the benchmark JVM on a free loopback port, for benchmarks that drive the whole
+// stack through sockets and need the server's metrics in the same process. Its console output is discarded, and
+// it runs on a daemon thread until the benchmark JVM exits; see ServerProcess for a server in a JVM of its own.
+class LoopbackServer {
+    // Port the server listens on.
+    private final int port;
+
+    // Constructor for LoopbackServer, starting the server.
+    LoopbackServer() throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        this.port = ServerProcess.freePort();
+        Server.NioServer server = new Server.NioServer("127.0.0.1", port);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Method to connect a client with Nagle's algorithm off, retrying while the acceptor is still starting.
+    Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End-to-end benchmark over loopback: an NIO server in the benchmark JVM and a room of socket clients. Each
+// operation sends one line from the first client and waits until every client, the sender included, has read the
+// broadcast, so the score is delivered messages per second through the whole stack.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.rate.client=0", "-Dchat.rate.room=0"})
+public class LoopbackThroughputBenchmark {
+    // Number of clients in the room.
+    @Param({"2", "100"})
+    private int clients;
+
+    private Socket[] sockets;
+    private PrintWriter sender;
+    private BufferedReader[] readers;
+    private long sequence;
+
+    @Setup
+    public void setUp() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+
+        sockets = new Socket[clients];
+        readers = new BufferedReader[clients];
+        for (int i = 0; i < clients; i++) {
+            sockets[i] = server.connect();
+            readers[i] = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+            PrintWriter out = new PrintWriter(sockets[i].getOutputStream(), true);
+            out.println("client-" + i);
+            out.println("/join loopback");
+            readUntil(readers[i], "You have successfully joined the room: loopback");
+            if (i == 0) {
+                sender = out;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException {
+        String text = "m" + sequence++;
+        sender.println(text);
+        for (BufferedReader reader : readers) {
+            readUntil(reader, ": " + text);
+        }
+    }
+
+    // Method to read lines until one ends with the given suffix.
+    private static void readUntil(BufferedReader reader, String suffix) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.endsWith(suffix)) {
+                return;
+            }
+        }
+        throw new IOException("Connection closed while waiting for: " + suffix);
+    }
+}
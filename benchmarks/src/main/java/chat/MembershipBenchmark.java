@@ -0,0 +1,79 @@
+package chat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of join/leave churn through ClientHandler. With no residents every join creates the room and every
+// leave tears it down again, as the grace period for empty rooms is turned off; with residents the room stays and
+// only the member set changes. Run with -t to churn from several threads at once.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.room.graceMs=0"})
+public class MembershipBenchmark {
+
+    // Room shared by every benchmark thread, with members that stay for the whole run.
+    @State(Scope.Benchmark)
+    public static class Room {
+        // Number of clients staying in the room.
+        @Param({"0", "100"})
+        private int residents;
+
+        private final List<Server.ClientHandler> members = new ArrayList<>();
+
+        @Setup
+        public void setUp() {
+            // The server logs every join and leave; keep the console out of the measurement.
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            for (int i = 0; i < residents; i++) {
+                Server.ClientHandler member = new Server.ClientHandler(new Server.Outbox(() -> { }));
+                member.handleName("resident-" + i);
+                member.joinChatRoom("churn");
+                members.add(member);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            for (Server.ClientHandler member : members) {
+                member.leaveChatRoom();
+            }
+            Server.chatRooms.clear();
+        }
+    }
+
+    // Client joining and leaving, one per benchmark thread.
+    @State(Scope.Thread)
+    public static class Member {
+        private Server.Outbox outbox;
+        private Server.ClientHandler handler;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        @Setup
+        public void setUp() {
+            outbox = new Server.Outbox(() -> { });
+            handler = new Server.ClientHandler(outbox);
+            handler.handleName("member-" + Thread.currentThread().getId());
+        }
+
+        // Method to discard the replies queued for the client.
+        void drain() {
+            while (outbox.drainTo(buffer.clear()) > 0) {
+                // Discarding the copied output, as a socket write would.
+            }
+        }
+    }
+
+    @Benchmark
+    public void joinLeave(Room room, Member member) {
+        member.handler.joinChatRoom("churn");
+        member.handler.leaveChatRoom();
+        member.drain();
+    }
+}
@@ -0,0 +1,47 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of ClientHandler.sendMessageToChatRoom: building the history entry, appending it to the room's log,
+// formatting the timestamped line and encoding it, for a room whose only member is the sender.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.rate.client=0", "-Dchat.rate.room=0"})
+public class MessageFormattingBenchmark {
+    // Length of the message text in characters.
+    @Param({"16", "256"})
+    private int length;
+
+    private Server.Outbox outbox;
+    private Server.ClientHandler handler;
+    private String text;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    @Setup
+    public void setUp() {
+        outbox = new Server.Outbox(() -> { });
+        handler = new Server.ClientHandler(outbox);
+        handler.handleName("alice");
+        handler.joinChatRoom("format");
+        text = "x".repeat(length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.leaveChatRoom();
+        Server.chatRooms.clear();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        handler.sendMessageToChatRoom(text);
+        while (outbox.drainTo(buffer.clear()) > 0) {
+            // Discarding the copied output, as a socket write would.
+        }
+    }
+}
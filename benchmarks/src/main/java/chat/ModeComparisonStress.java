@@ -0,0 +1,63 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Comparison of the server modes under the same load: for each mode, starts a server in its own JVM, runs the load
+// generator against it and samples the server's resident memory meanwhile. Prints the connections held, the
+// memory per connection (peak minus idle, divided by the connections) and the fan-out latency percentiles. The
+// fixed pool is given a thread per user, so it is measured at the same load rather than turned away at its
+// default ten; virtual threads need Java 21 and fall back to the pool on older runtimes.
+//
+//     java -cp benchmarks/target/benchmarks.jar chat.ModeComparisonStress [users] [seconds] [modes, e.g. pool,virtual,nio]
+public class ModeComparisonStress {
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] modes = (args.length > 2 ? args[2] : "pool,virtual,nio").split(",");
+
+        List<String> results = new ArrayList<>();
+        for (String mode : modes) {
+            int port = ServerProcess.freePort();
+            try (ServerProcess server = new ServerProcess(port, mode.trim(), "-Dchat.pool.threads=" + users,
+                    "-Dchat.connections.max=0")) {
+                server.awaitOutput("Server on Port", 1, 30_000);
+                Thread.sleep(1000);
+                long idle = server.residentKilobytes();
+
+                // Running the load on another thread while sampling the server's memory on this one.
+                AtomicReference<List<String>> report = new AtomicReference<>();
+                Thread load = new Thread(() -> {
+                    try {
+                        report.set(ServerProcess.runLoad("127.0.0.1:" + port, "-Dchat.load.users=" + users,
+                                "-Dchat.load.duration=" + seconds));
+                    } catch (Exception e) {
+                        report.set(List.of("Load generator failed: " + e));
+                    }
+                }, "load");
+                load.start();
+                long peak = idle;
+                while (load.isAlive()) {
+                    peak = Math.max(peak, server.residentKilobytes());
+                    load.join(200);
+                }
+
+                String connected = ServerProcess.line(report.get(), "Connected");
+                long held = Long.parseLong(connected.replaceAll("^Connected (\\d+).*", "$1"));
+                String result = String.format("%-8s %s%n         memory: %d MB idle, %d MB peak, %.1f KB per connection%n"
+                                + "         %s%n         %s", mode.trim(), connected, idle / 1024, peak / 1024,
+                        held == 0 ? 0.0 : (double) (peak - idle) / held,
+                        ServerProcess.line(report.get(), "Throughput:"),
+                        ServerProcess.line(report.get(), "Fan-out latency"));
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+
+        System.out.println();
+        System.out.println(users + " users for " + seconds + " s per run:");
+        results.forEach(System.out::println);
+    }
+}
@@ -0,0 +1,56 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of fan-out latency for large rooms: the time for ChatRoomHandler.broadcastMessage to queue one message
+// for every member, on the sending thread alone (sequential) or split into shards across the fan-out pool
+// (parallel). The outboxes are drained between invocations, outside the measurement.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParallelFanoutBenchmark {
+    // Number of clients in the room.
+    @Param({"1000", "20000", "100000"})
+    private int members;
+
+    private Server.ChatRoomHandler room;
+    private Server.Outbox[] clients;
+    private ByteBuffer message;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        room = new Server.ChatRoomHandler("fanout");
+        clients = new Server.Outbox[members];
+        for (int i = 0; i < members; i++) {
+            clients[i] = new Server.Outbox(() -> { });
+            room.addClient(clients[i]);
+        }
+        message = Server.encodeLine("\n[12:00:00] alice: hello everyone in the room");
+    }
+
+    @Setup(Level.Invocation)
+    public void drain() {
+        for (Server.Outbox client : clients) {
+            while (client.drainTo(buffer.clear()) > 0) {
+                // Discarding the copied output, as a socket write would.
+            }
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.fanout.parallelThreshold=2147483647"})
+    public int sequential() {
+        return room.broadcastMessage(message, null);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.fanout.parallelThreshold=4096"})
+    public int parallel() {
+        return room.broadcastMessage(message, null);
+    }
+}
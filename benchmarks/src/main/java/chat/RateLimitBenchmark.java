@@ -0,0 +1,34 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of the token buckets limiting message rates: one compare-and-set per message, on a client's own
+// bucket or on a room's bucket shared by all its senders (run with -t to contend on it). The rate is high enough
+// that tokens are always granted, so the cost measured is that of the check itself.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.dir=")
+public class RateLimitBenchmark {
+    // Bucket shared by every benchmark thread, like a room's.
+    private final Server.TokenBucket room = new Server.TokenBucket(1_000_000_000, 1_000_000);
+
+    // Bucket owned by one thread, like a client's.
+    @State(Scope.Thread)
+    public static class Client {
+        private final Server.TokenBucket bucket = new Server.TokenBucket(1_000_000_000, 1_000_000);
+    }
+
+    @Benchmark
+    public boolean clientBucket(Client client) {
+        return client.bucket.tryAcquire();
+    }
+
+    @Benchmark
+    public boolean roomBucket() {
+        return room.tryAcquire();
+    }
+}
@@ -0,0 +1,210 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stress check of session resumption: one client sends numbered messages into a room without pause while another
+// member keeps dropping its connection and resuming its session. The dropping client half-closes its side, so the
+// server parks the session while broadcasts are still arriving, and reads everything the server wrote before
+// closing; after each resume it must receive exactly the messages it missed. At the end it must have seen every
+// message once and in order. Runs against a server in its own JVM, once per mode, and exits with status 1 on a
+// lost, repeated or reordered message.
+//
+//     java -cp benchmarks/target/benchmarks.jar chat.ResumeStress [messages] [modes, e.g. pool,nio]
+public class ResumeStress {
+    // Room the check runs in.
+    private static final String ROOM = "resume-check";
+    // Message sent by the sender, numbered.
+    private static final Pattern MESSAGE = Pattern.compile("sender: seq (\\d+) end$");
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String[] modes = (args.length > 1 ? args[1] : "pool,nio").split(",");
+
+        int failures = 0;
+        for (String mode : modes) {
+            int port = ServerProcess.freePort();
+            try (ServerProcess server = new ServerProcess(port, mode.trim())) {
+                server.awaitOutput("Server on Port", 1, 30_000);
+                failures += run(mode.trim(), port, messages);
+            }
+        }
+        System.out.println(failures == 0 ? "OK: no lost, repeated or reordered messages across resumes" : failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Method to run the check against one server; returns the number of failures.
+    private static int run(String mode, int port, int messages) throws Exception {
+        // Connecting the member first, so it is in the room before the first message.
+        Socket member = new Socket("127.0.0.1", port);
+        send(member, "member\n/join " + ROOM + "\n");
+        String token = null;
+        StringBuilder line = new StringBuilder();
+        InputStream in = member.getInputStream();
+        while (true) {
+            String next = readLine(in, line);
+            if (next == null) {
+                System.out.println(mode + ": the server closed the connection before the member joined");
+                return 1;
+            }
+            if (next.startsWith("SESSION ")) {
+                token = next.substring(8);
+            } else if (next.startsWith("You have successfully joined the room: ")) {
+                break;
+            }
+        }
+        if (token == null) {
+            System.out.println(mode + ": no session token issued; is -Dchat.session.graceMs 0?");
+            return 1;
+        }
+
+        // Sending on another thread, discarding the sender's own copies so its queue never fills.
+        Socket sender = new Socket("127.0.0.1", port);
+        send(sender, "sender\n/join " + ROOM + "\n");
+        Thread discard = new Thread(() -> {
+            try {
+                sender.getInputStream().transferTo(OutputStream.nullOutputStream());
+            } catch (IOException ignored) {
+                // Closed at the end of the run.
+            }
+        }, "sender-discard");
+        discard.setDaemon(true);
+        discard.start();
+        Thread.sleep(500);
+        Thread sending = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) {
+                    send(sender, "seq " + i + " end\n");
+                    if (i % 20 == 19) {
+                        Thread.sleep(5);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println(mode + ": sender failed: " + e);
+            }
+        }, "sender");
+        sending.start();
+
+        // Reading for a while, then dropping and resuming, until the last message arrives or the run times out.
+        List<Integer> received = new ArrayList<>();
+        StringBuilder partial = new StringBuilder();
+        int resumes = 0;
+        long deadline = Long.MAX_VALUE;
+        try {
+            while (received.isEmpty() || received.get(received.size() - 1) < messages - 1) {
+                if (!sending.isAlive() && deadline == Long.MAX_VALUE) {
+                    deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+                }
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+                // Reading until a random moment, which may fall in the middle of a line.
+                long dropAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1 + ThreadLocalRandom.current().nextInt(50));
+                member.setSoTimeout(5);
+                try {
+                    while (System.nanoTime() < dropAt) {
+                        String next = readLine(in, partial);
+                        if (next == null) {
+                            break;
+                        }
+                        record(next, received);
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Nothing arrived for a while; dropping now.
+                }
+                if (!sending.isAlive() && !received.isEmpty() && received.get(received.size() - 1) == messages - 1) {
+                    break;
+                }
+                // Dropping: the server sees the end of input and parks the session, then closes its side once
+                // its writer stops; everything it wrote before is read here.
+                member.setSoTimeout(10_000);
+                member.shutdownOutput();
+                String next;
+                while ((next = readLine(in, partial)) != null) {
+                    record(next, received);
+                }
+                member.close();
+
+                // Resuming on a new connection: the reply comes first, then the rest of the stream, which may
+                // finish a line the old connection broke off.
+                member = new Socket("127.0.0.1", port);
+                in = member.getInputStream();
+                send(member, "/resume " + token + "\n");
+                StringBuilder header = new StringBuilder();
+                String reply;
+                do {
+                    reply = readLine(in, header);
+                } while (reply != null && !reply.startsWith("RESUMED") && !reply.startsWith("RESUME FAILED"));
+                if (reply == null || !reply.startsWith("RESUMED")) {
+                    System.out.println(mode + ": resume " + (resumes + 1) + " failed: " + reply);
+                    return 1;
+                }
+                resumes++;
+            }
+        } finally {
+            sending.join();
+            sender.close();
+            member.close();
+        }
+
+        // Checking that every message arrived once and in order.
+        for (int i = 0; i < received.size(); i++) {
+            if (received.get(i) != i) {
+                System.out.println(mode + ": expected message " + i + " but got " + received.get(i)
+                        + " after " + resumes + " resumes");
+                return 1;
+            }
+        }
+        if (received.size() != messages) {
+            System.out.println(mode + ": received " + received.size() + " of " + messages + " messages after "
+                    + resumes + " resumes");
+            return 1;
+        }
+        System.out.println(mode + ": " + messages + " messages received once and in order across " + resumes + " resumes");
+        return 0;
+    }
+
+    // Method to record a line if it is one of the sender's messages.
+    private static void record(String line, List<Integer> received) {
+        Matcher matcher = MESSAGE.matcher(line);
+        if (matcher.find()) {
+            received.add(Integer.parseInt(matcher.group(1)));
+        }
+    }
+
+    // Method to read one line, continuing the partial line kept from earlier reads, which may come from a previous
+    // connection; returns null at the end of the stream, keeping an unfinished line for the next connection.
+    private static String readLine(InputStream in, StringBuilder partial) throws IOException {
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (b == '\n') {
+                int end = partial.length();
+                if (end > 0 && partial.charAt(end - 1) == '\r') {
+                    end--;
+                }
+                String line = partial.substring(0, end);
+                partial.setLength(0);
+                return line;
+            }
+            partial.append((char) b);
+        }
+    }
+
+    // Method to send text to the server.
+    private static void send(Socket socket, String text) throws IOException {
+        socket.getOutputStream().write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,115 @@
+package chat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Stress check of the room lifecycle: many threads join, switch and leave a handful of rooms as fast as they can,
+// then the room map is checked for lost members (clients in a room that is no longer in the map, or missing from
+// their room) and, once everyone has left and the grace period for empty rooms has passed, for leaked rooms.
+// Exits with status 1 on any inconsistency.
+//
+//     java -cp benchmarks/target/benchmarks.jar chat.RoomChurnStress [threads] [clients per thread] [rooms] [seconds]
+public class RoomChurnStress {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int clientsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rooms = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Server.ClientHandler[][] handlers = new Server.ClientHandler[threads][clientsPerThread];
+        Server.Outbox[][] outboxes = new Server.Outbox[threads][clientsPerThread];
+        String[][] joined = new String[threads][clientsPerThread];
+        long[] operations = new long[threads];
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        // Churning: each thread owns its clients, so a client is only ever used by one thread.
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            for (int c = 0; c < clientsPerThread; c++) {
+                outboxes[t][c] = new Server.Outbox(() -> { });
+                handlers[t][c] = new Server.ClientHandler(outboxes[t][c]);
+                handlers[t][c].handleName("client-" + t + "-" + c);
+            }
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+                while (running.get()) {
+                    int c = random.nextInt(clientsPerThread);
+                    if (random.nextInt(3) == 0) {
+                        handlers[thread][c].leaveChatRoom();
+                        joined[thread][c] = null;
+                    } else {
+                        String room = "room-" + random.nextInt(rooms);
+                        handlers[thread][c].joinChatRoom(room);
+                        joined[thread][c] = room;
+                    }
+                    while (outboxes[thread][c].drainTo(buffer.clear()) > 0) {
+                        // Discarding the copied output, as a socket write would.
+                    }
+                    operations[thread]++;
+                }
+            }, "churn-" + t);
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += operations[t];
+        }
+        console.println("Ran " + total + " joins and leaves on " + threads + " threads in " + seconds + " s");
+
+        // Checking that every client that believes it is in a room is a member of the room in the map.
+        int failures = 0;
+        int members = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int c = 0; c < clientsPerThread; c++) {
+                if (joined[t][c] == null) {
+                    continue;
+                }
+                members++;
+                Server.ChatRoomHandler room = Server.chatRooms.get(joined[t][c]);
+                if (room == null || !room.hasClient(outboxes[t][c])) {
+                    console.println("Lost member: client-" + t + "-" + c + " in " + joined[t][c]);
+                    failures++;
+                }
+            }
+        }
+        int counted = 0;
+        for (Server.ChatRoomHandler room : Server.chatRooms.values()) {
+            counted += room.getNumberOfClients();
+        }
+        if (counted != members) {
+            console.println("Rooms hold " + counted + " members, but " + members + " clients are in a room");
+            failures++;
+        }
+
+        // Checking that no room outlives its last member by more than the grace period.
+        for (Server.ClientHandler[] row : handlers) {
+            for (Server.ClientHandler handler : row) {
+                handler.leaveChatRoom();
+            }
+        }
+        long grace = Integer.getInteger("chat.room.graceMs", 5000);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grace + 2000);
+        while (!Server.chatRooms.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        if (!Server.chatRooms.isEmpty()) {
+            console.println("Leaked rooms: " + Server.chatRooms.keySet());
+            failures++;
+        }
+
+        console.println(failures == 0 ? "OK: no lost members, no leaked rooms" : failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
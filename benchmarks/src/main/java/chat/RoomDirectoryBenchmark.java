@@ -0,0 +1,86 @@
+package chat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of /listrooms, of refreshing the room directory snapshot it is served from, and of creating a room
+// with many rooms already open, measured as time per call.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.log.dir=", "-Dchat.room.graceMs=0"})
+public class RoomDirectoryBenchmark {
+    // Number of open rooms.
+    @Param({"1000", "10000", "100000"})
+    private int rooms;
+
+    private Server.ChatRoomHandler[] open;
+    private Server.Outbox[] members;
+    private Server.Outbox outbox;
+    private Server.ClientHandler handler;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+    private int next;
+
+    @Setup
+    public void setUp() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        open = new Server.ChatRoomHandler[rooms];
+        members = new Server.Outbox[rooms];
+        for (int i = 0; i < rooms; i++) {
+            open[i] = Server.acquireRoom("room-" + i);
+            members[i] = new Server.Outbox(() -> { });
+            open[i].addClient(members[i]);
+        }
+        Server.RoomDirectory.refresh();
+        outbox = new Server.Outbox(() -> { });
+        handler = new Server.ClientHandler(outbox);
+        handler.handleName("lister");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < rooms; i++) {
+            open[i].removeClient(members[i]);
+        }
+    }
+
+    // Listing the first page of all rooms.
+    @Benchmark
+    public void listRooms() {
+        handler.listChatRooms();
+        drain();
+    }
+
+    // Listing the first page of the rooms matching a prefix.
+    @Benchmark
+    public void listRoomsByPrefix() {
+        handler.listChatRooms("room-42");
+        drain();
+    }
+
+    // Rebuilding the snapshot, which the directory does once per refresh interval in the background.
+    @Benchmark
+    public void refreshDirectory() {
+        Server.RoomDirectory.refresh();
+    }
+
+    // Joining a room that does not exist yet and leaving it, which removes it again (the grace period is off).
+    @Benchmark
+    public void createRoom() {
+        handler.joinChatRoom("new-" + (next++ & 1023));
+        handler.leaveChatRoom();
+        drain();
+    }
+
+    // Method to discard the replies queued for the client.
+    private void drain() {
+        while (outbox.drainTo(buffer.clear()) > 0) {
+            // Discarding the copied output, as a socket write would.
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A server, or the load generator, run in a JVM of its own from the benchmark jar's class path, for runs that need
+// several servers or that measure a server apart from the load driving it. The process output is kept, so a run
+// can wait for a line such as a cluster node joining, and pick numbers out of the load generator's report.
+class ServerProcess implements AutoCloseable {
+    // The process, and every line it has printed so far.
+    private final Process process;
+    private final List<String> output = new ArrayList<>();
+
+    // Constructor for ServerProcess, starting a server on 127.0.0.1 in the given mode with extra -D properties.
+    // Disk logging and rate limits are off, so the run measures the server rather than its safeguards.
+    ServerProcess(int port, String mode, String... properties) throws IOException {
+        List<String> command = new ArrayList<>(List.of(javaCommand(), "-Dchat.log.dir=",
+                "-Dchat.rate.client=0", "-Dchat.rate.room=0"));
+        command.addAll(Arrays.asList(properties));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "chat.Server",
+                "127.0.0.1", Integer.toString(port), mode));
+        this.process = start(command, output);
+    }
+
+    // Method to wait until the server has printed a line containing the text the given number of times.
+    void awaitOutput(String text, int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (count(text) < count) {
+            if (!process.isAlive() || System.nanoTime() > deadline) {
+                throw new IllegalStateException("Server did not print \"" + text + "\" " + count + " times: " + lines());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // Method to get the server's resident memory in kilobytes, from /proc; -1 where there is no /proc.
+    long residentKilobytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // Not on Linux, or the process is gone.
+        }
+        return -1;
+    }
+
+    // Method to stop the server.
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    // Method to run the load generator against the given servers (host:port,...) to completion, returning its
+    // report; the -D properties configure the load, see chat.Client.
+    static List<String> runLoad(String servers, String... properties) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(javaCommand(), "-Dchat.load.servers=" + servers));
+        command.addAll(Arrays.asList(properties));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "chat.Client", "--load"));
+        List<String> report = new ArrayList<>();
+        Process load = start(command, report);
+        load.waitFor();
+        // Letting the reader thread take the last lines.
+        Thread.sleep(200);
+        synchronized (report) {
+            return new ArrayList<>(report);
+        }
+    }
+
+    // Method to find the line of a report starting with the prefix, or an empty string.
+    static String line(List<String> report, String prefix) {
+        for (String line : report) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return "";
+    }
+
+    // Method to pick a free port on the loopback interface.
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    // Method to start a process whose output lines are collected by a daemon thread.
+    private static Process start(List<String> command, List<String> output) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    synchronized (output) {
+                        output.add(line);
+                    }
+                }
+            } catch (IOException ignored) {
+                // The process has ended.
+            }
+        }, "process-output");
+        reader.setDaemon(true);
+        reader.start();
+        return process;
+    }
+
+    // Method to count the lines printed so far that contain the text.
+    private int count(String text) {
+        synchronized (output) {
+            return (int) output.stream().filter(line -> line.contains(text)).count();
+        }
+    }
+
+    // Method to copy the lines printed so far, for error messages.
+    private List<String> lines() {
+        synchronized (output) {
+            return new ArrayList<>(output);
+        }
+    }
+
+    // Method to find the java command of the running JVM.
+    private static String javaCommand() {
+        return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    }
+}
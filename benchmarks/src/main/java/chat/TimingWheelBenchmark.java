@@ -0,0 +1,46 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmark of the timing wheel behind idle timeouts and room teardown: scheduling a timeout and cancelling it,
+// as a connection does when it opens and closes, with up to a million other timeouts pending. Both operations
+// are O(1), so the time per call should not grow with the number pending.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.dir=")
+public class TimingWheelBenchmark {
+    // Number of other timeouts pending on the wheel.
+    @Param({"0", "1000", "1000000"})
+    private int pending;
+
+    private Server.TimingWheel wheel;
+    private Server.TimingWheel.Timeout[] background;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        wheel = new Server.TimingWheel("benchmark-wheel", 100);
+        background = new Server.TimingWheel.Timeout[pending];
+        for (int i = 0; i < pending; i++) {
+            // Spread over ten minutes, like the idle timeouts of connections opened over time.
+            background[i] = wheel.schedule(() -> { }, 60_000 + i % 540_000, TimeUnit.MILLISECONDS);
+        }
+        // Letting the wheel thread place them in their buckets.
+        Thread.sleep(500);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Server.TimingWheel.Timeout timeout : background) {
+            timeout.cancel();
+        }
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        return wheel.schedule(() -> { }, 600_000, TimeUnit.MILLISECONDS).cancel();
+    }
+}
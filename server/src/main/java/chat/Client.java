@@ -0,0 +1,827 @@
+/*
+
+	Richard Delforge, Cameron Devenport, Johnny Do
+	Chat Room Project
+	COSC 4333 - Distributed Systems
+	Dr. Sun
+	11/27/2023
+	
+*/
+
+package chat;
+
+// Importing necessary Java libraries for input-output operations, networking, and atomic data handling.
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Client class to handle chat client operations.
+public class Client {
+
+    // Binary protocol opcodes; these must match Server.BinaryProtocol.
+    private static final int HELLO = 0x01;
+    private static final int JOIN = 0x02;
+    private static final int LEAVE = 0x03;
+    private static final int LIST = 0x04;
+    private static final int EXIT = 0x05;
+    private static final int MESSAGE = 0x06;
+    private static final int COMMAND = 0x07;
+    private static final int TEXT = 0x81;
+    private static final int WELCOME = 0x82;
+    private static final int JOINED = 0x83;
+    private static final int LEFT = 0x84;
+    private static final int ROOM_MESSAGE = 0x85;
+    // How long to keep trying to resume the session after the connection drops, in milliseconds; should match the
+    // server's -Dchat.session.graceMs (-Dchat.client.resumeMs).
+    private static final int RESUME_MS = Integer.getInteger("chat.client.resumeMs", 30000);
+    // Interval between keepalive pings once the user has a name, so a user who only reads is not closed as idle;
+    // should be well under the server's -Dchat.idle.timeoutMs, 0 disables (-Dchat.client.pingMs).
+    private static final int PING_MS = Integer.getInteger("chat.client.pingMs", 60000);
+
+    // Main method - entry point of the client application.
+    public static void main(String[] args) {
+        // Running the headless load generator instead of the interactive client when asked to:
+        // java chat.Client --load [host] [port], configured with -Dchat.load.* properties.
+        if (args.length > 0 && "--load".equals(args[0])) {
+            String host = args.length > 1 ? args[1] : "localhost";
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : 9025;
+            try {
+                new LoadGenerator(host, port).run();
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("Load generator error: " + ex.getMessage());
+            }
+            return;
+        }
+
+        // Scanner to read input from the command line.
+        Scanner scanner = new Scanner(System.in);
+
+        // Prompting the user to enter the server IP address and reading the input.
+        System.out.print("Enter server IP address (default localhost): ");
+        String serverIpInput = scanner.nextLine();
+        // Using 'localhost' as default if no input is provided.
+        final String serverIp = serverIpInput.isEmpty() ? "localhost" : serverIpInput;
+
+        // Prompting the user to enter the server port number and reading the input.
+        System.out.print("Enter server port number (default 9025): ");
+        String portInput = scanner.nextLine();
+        // Using '9025' as default if no input is provided.
+        int mainServerPort = portInput.isEmpty() ? 9025 : Integer.parseInt(portInput);
+
+        // Asking whether to use the binary protocol instead of text lines.
+        System.out.print("Use binary protocol? (y/N): ");
+        boolean binaryProtocol = scanner.nextLine().trim().equalsIgnoreCase("y");
+
+        // Establishing a connection to the server.
+        try (Socket mainServerSocket = new Socket(serverIp, mainServerPort);
+             // Setting up output and input streams for communication with the server.
+             PrintWriter mainServerOut = new PrintWriter(mainServerSocket.getOutputStream(), true);
+             BufferedReader mainServerIn = new BufferedReader(new InputStreamReader(mainServerSocket.getInputStream()));
+             // BufferedReader for reading input from the command line.
+             BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in))) {
+
+            // Printing a message to confirm connection to the server.
+            System.out.println("Connected to main server on " + serverIp + ":" + mainServerPort);
+
+            // Atomic boolean to track the exit condition of the client.
+            AtomicBoolean exitFlag = new AtomicBoolean(false);
+
+            // Switching to binary frames if requested; the server replies in text before the switch.
+            if (binaryProtocol) {
+                System.out.println(mainServerIn.readLine()); // The name prompt.
+                mainServerOut.println("/binary");
+                String reply = mainServerIn.readLine();
+                if (!"BINARY OK".equals(reply)) {
+                    System.err.println("Server does not support the binary protocol: " + reply);
+                    return;
+                }
+                runBinary(mainServerSocket, stdIn, exitFlag);
+                return;
+            }
+
+            // Connection in use, replaced when the client reconnects after a drop, and the token of the session
+            // to resume, once the server has issued one.
+            AtomicReference<Socket> serverSocket = new AtomicReference<>(mainServerSocket);
+            AtomicReference<PrintWriter> serverOut = new AtomicReference<>(mainServerOut);
+            AtomicReference<String> sessionToken = new AtomicReference<>();
+
+            // Starting a new thread to handle server messages.
+            new Thread(() -> {
+                BufferedReader serverIn = mainServerIn;
+                while (serverIn != null) {
+                    // Variable to store messages received from the server.
+                    String serverMessage = null;
+                    try {
+                        // Reading messages from the server until the exit flag is set.
+                        while ((serverMessage = serverIn.readLine()) != null && !exitFlag.get()) {
+                            // Keeping the session token to itself rather than printing it.
+                            if (serverMessage.startsWith("SESSION ")) {
+                                sessionToken.set(serverMessage.substring(8));
+                                continue;
+                            }
+                            // A server that closes the connection on purpose ends the session.
+                            if ("SERVER_CLOSE_CONNECTION".equals(serverMessage)) {
+                                sessionToken.set(null);
+                            }
+                            // Printing the server message to the client's console.
+                            System.out.println(serverMessage);
+                        }
+                    } catch (IOException e) {
+                        // Printing an error message if there is an issue reading from the server.
+                        if (!exitFlag.get()) {
+                            System.err.println("Error reading from main server: " + e.getMessage());
+                        }
+                        serverMessage = null;
+                    }
+                    // Resuming the session when the connection dropped rather than being closed.
+                    String token = sessionToken.get();
+                    if (serverMessage != null || exitFlag.get() || token == null) {
+                        break;
+                    }
+                    serverIn = resume(serverIp, mainServerPort, token, serverSocket, serverOut, exitFlag);
+                }
+            }).start(); // Starting the thread.
+
+            // Variable to store user input from the command line.
+            String userInput;
+            boolean named = false;
+            // Continuously reading user input until the exit flag is set.
+            while ((userInput = stdIn.readLine()) != null && !exitFlag.get()) {
+                // Sending user input to the main server, over the current connection.
+                serverOut.get().println(userInput);
+                // Pinging the server from the first line on, which is the user's name.
+                if (!named) {
+                    named = true;
+                    startPinger(() -> serverOut.get().println("/ping"), exitFlag);
+                }
+                // Setting the exit flag if the user inputs 'EXIT'.
+                if ("/exit".equalsIgnoreCase(userInput.trim())) {
+                    exitFlag.set(true);
+                    break; // Exiting the main client loop.
+                }
+            }
+            // Closing a connection opened by a reconnect; the first one is closed with the streams below.
+            Socket current = serverSocket.get();
+            if (current != mainServerSocket) {
+                current.close();
+            }
+
+        } catch (UnknownHostException ex) {
+            // Printing an error message if the host is unknown.
+            System.err.println("Host unknown: " + ex.getMessage());
+        } catch (IOException ex) {
+            // Printing an error message if there is an I/O error.
+            System.err.println("I/O error: " + ex.getMessage());
+        } finally {
+            // Printing a message when the client exits.
+            System.out.println("Client exited.");
+        }
+    }
+
+    // Method to reconnect after the connection to the server dropped and resume the session with its token,
+    // retrying with backoff for up to RESUME_MS. The server answers with the messages missed meanwhile, or, if the
+    // session has expired, asks for a name as on a new connection. Returns the reader of the new connection, or
+    // null if the server could not be reached in time.
+    private static BufferedReader resume(String host, int port, String token, AtomicReference<Socket> serverSocket,
+                                         AtomicReference<PrintWriter> serverOut, AtomicBoolean exitFlag) {
+        System.out.println("Connection lost, reconnecting...");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESUME_MS);
+        long backoff = 100;
+        while (!exitFlag.get() && System.nanoTime() < deadline) {
+            Socket socket = null;
+            try {
+                socket = new Socket(host, port);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                in.readLine(); // The name prompt.
+                out.println("/resume " + token);
+                String reply = in.readLine();
+                if (reply == null) {
+                    throw new EOFException("Connection closed during resume");
+                }
+                System.out.println(reply.startsWith("RESUMED ") ? reply.substring(8) : reply);
+                serverSocket.set(socket);
+                serverOut.set(out);
+                return in;
+            } catch (IOException e) {
+                // The server is not reachable yet; waiting a little longer each time.
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to do for a socket that fails to close.
+                    }
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return null;
+                }
+                backoff = Math.min(backoff * 2, 2000);
+            }
+        }
+        System.err.println("Could not reconnect to the server.");
+        return null;
+    }
+
+    // Method to run the client over the binary protocol: frames from the server are printed by a reader thread,
+    // and each line typed by the user is sent as the matching frame.
+    private static void runBinary(Socket socket, BufferedReader stdIn, AtomicBoolean exitFlag) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        // ID of the room the user is in, or -1 when not in a room.
+        AtomicInteger currentRoomId = new AtomicInteger(-1);
+
+        // Starting a new thread to print frames from the server.
+        new Thread(() -> {
+            try {
+                while (!exitFlag.get()) {
+                    int length = in.readInt();
+                    int opcode = in.readUnsignedByte();
+                    byte[] body = new byte[length - 1];
+                    in.readFully(body);
+                    DataInputStream frame = new DataInputStream(new ByteArrayInputStream(body));
+                    if (opcode == TEXT) {
+                        System.out.println(readString(frame));
+                    } else if (opcode == WELCOME) {
+                        frame.readInt(); // Our client ID.
+                        System.out.println(readString(frame));
+                    } else if (opcode == JOINED) {
+                        currentRoomId.set(frame.readInt());
+                        System.out.println("You have successfully joined the room: " + readString(frame));
+                    } else if (opcode == LEFT) {
+                        currentRoomId.compareAndSet(frame.readInt(), -1);
+                        System.out.println("Left room.");
+                    } else if (opcode == ROOM_MESSAGE) {
+                        frame.readInt(); // Room ID.
+                        frame.readInt(); // Sender ID.
+                        String time = new SimpleDateFormat("HH:mm:ss").format(new Date(frame.readLong()));
+                        String sender = readString(frame);
+                        System.out.println("\n[" + time + "] " + sender + ": " + readString(frame));
+                    }
+                }
+            } catch (IOException e) {
+                if (!exitFlag.get()) {
+                    System.err.println("Error reading from main server: " + e.getMessage());
+                }
+            }
+        }).start();
+
+        // Sending the user's name, then one frame per line of input.
+        String userInput;
+        boolean named = false;
+        while ((userInput = stdIn.readLine()) != null && !exitFlag.get()) {
+            if (!named) {
+                writeFrame(out, HELLO, -1, userInput);
+                named = true;
+                startPinger(() -> {
+                    try {
+                        writeFrame(out, COMMAND, -1, "/ping");
+                    } catch (IOException ignored) {
+                        // The reader thread reports the lost connection.
+                    }
+                }, exitFlag);
+            } else if (userInput.startsWith("/join ")) {
+                writeFrame(out, JOIN, -1, userInput.substring(6));
+            } else if ("/leave".equals(userInput)) {
+                writeFrame(out, LEAVE, -1, null);
+            } else if ("/listrooms".equals(userInput)) {
+                writeFrame(out, LIST, -1, null);
+            } else if ("/exit".equalsIgnoreCase(userInput.trim())) {
+                writeFrame(out, EXIT, -1, null);
+                exitFlag.set(true);
+                break;
+            } else if (userInput.startsWith("/")) {
+                writeFrame(out, COMMAND, -1, userInput);
+            } else if (currentRoomId.get() >= 0) {
+                writeFrame(out, MESSAGE, currentRoomId.get(), userInput);
+            } else {
+                System.out.println("Join a room with /join <room_name> before sending messages.");
+            }
+        }
+    }
+
+    // Method to write one frame: [int length][byte opcode], then an optional room ID and an optional string.
+    // Synchronized on the stream, as the pinger writes frames too.
+    private static void writeFrame(DataOutputStream out, int opcode, int roomId, String text) throws IOException {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + (roomId >= 0 ? 4 : 0) + (text == null ? 0 : 2 + bytes.length);
+        synchronized (out) {
+            out.writeInt(length);
+            out.writeByte(opcode);
+            if (roomId >= 0) {
+                out.writeInt(roomId);
+            }
+            if (text != null) {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+        }
+    }
+
+    // Method to start a daemon thread sending a keepalive ping every PING_MS until the client exits.
+    private static void startPinger(Runnable ping, AtomicBoolean exitFlag) {
+        if (PING_MS <= 0) {
+            return;
+        }
+        Thread pinger = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(PING_MS);
+                    if (exitFlag.get()) {
+                        return;
+                    }
+                    ping.run();
+                }
+            } catch (InterruptedException ignored) {
+                // Exiting.
+            }
+        }, "client-pinger");
+        pinger.setDaemon(true);
+        pinger.start();
+    }
+
+    // Method to read a string prefixed by its UTF-8 length.
+    private static String readString(DataInputStream frame) throws IOException {
+        byte[] bytes = new byte[frame.readUnsignedShort()];
+        frame.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Nested class for the headless load generator: thousands of simulated users driven by a few selector threads,
+    // each following the script connect, name, join, chat at a random (Poisson) rate, leave, exit. Every message
+    // carries its send time, so each delivery yields one end-to-end fan-out latency sample. Users are assigned to
+    // rooms by a uniform or Zipf distribution of room sizes.
+    private static class LoadGenerator {
+        // Number of simulated users (-Dchat.load.users).
+        private static final int USERS = Integer.getInteger("chat.load.users", 1000);
+        // Number of rooms the users are spread over (-Dchat.load.rooms).
+        private static final int ROOMS = Integer.getInteger("chat.load.rooms", 50);
+        // Room size distribution, uniform or zipf (-Dchat.load.distribution), and the Zipf exponent
+        // (-Dchat.load.zipfExponent); with zipf the largest room gets the most users.
+        private static final String DISTRIBUTION = System.getProperty("chat.load.distribution", "uniform");
+        private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("chat.load.zipfExponent", "1.0"));
+        // Messages per second sent by each user; 0 only connects and idles (-Dchat.load.rate).
+        private static final double RATE = Double.parseDouble(System.getProperty("chat.load.rate", "1.0"));
+        // Length of the chat phase in seconds (-Dchat.load.duration).
+        private static final int DURATION = Integer.getInteger("chat.load.duration", 30);
+        // Connections opened per second while ramping up; 0 opens them all at once (-Dchat.load.connectRate).
+        private static final int CONNECT_RATE = Integer.getInteger("chat.load.connectRate", 1000);
+        // Length of each chat message in bytes, timestamp included (-Dchat.load.messageBytes).
+        private static final int MESSAGE_BYTES = Integer.getInteger("chat.load.messageBytes", 32);
+        // Servers to spread the users over, as host:port,host:port,...; overrides the host and port arguments, to
+        // load every node of a cluster at once (-Dchat.load.servers).
+        private static final String SERVERS = System.getProperty("chat.load.servers", "");
+        // Number of selector threads driving the users (-Dchat.load.threads).
+        private static final int THREADS = Integer.getInteger("chat.load.threads", Runtime.getRuntime().availableProcessors());
+        // Identifier of this run, so messages replayed from an earlier run's history are not counted.
+        private static final String RUN_ID = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+        // Marker in front of the send time embedded in every message sent by this run.
+        private static final String STAMP = ": @" + RUN_ID + ".";
+
+        // Phases of the script, advanced by the main thread.
+        private static final int CONNECT = 0, CHAT = 1, LEAVE = 2, STOP = 3;
+
+        // Addresses of the servers; user i connects to the (i % length)th.
+        private final InetSocketAddress[] addresses;
+        // Current phase of the script.
+        private volatile int phase = CONNECT;
+        // Counters shared by the workers.
+        private final LongAdder joined = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder closed = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+
+        // Constructor for LoadGenerator.
+        public LoadGenerator(String host, int port) {
+            if (SERVERS.isBlank()) {
+                this.addresses = new InetSocketAddress[] {new InetSocketAddress(host, port)};
+            } else {
+                String[] servers = SERVERS.split(",");
+                this.addresses = new InetSocketAddress[servers.length];
+                for (int i = 0; i < servers.length; i++) {
+                    String server = servers[i].trim();
+                    int colon = server.lastIndexOf(':');
+                    addresses[i] = new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+                }
+            }
+        }
+
+        // Method to run the whole script and print the report.
+        public void run() throws IOException, InterruptedException {
+            int[] roomOf = assignRooms();
+            int[] roomSizes = new int[ROOMS];
+            for (int room : roomOf) {
+                roomSizes[room]++;
+            }
+            int largest = 0, occupied = 0;
+            for (int size : roomSizes) {
+                largest = Math.max(largest, size);
+                occupied += size > 0 ? 1 : 0;
+            }
+            System.out.println("Load test against " + Arrays.toString(addresses) + ": " + USERS + " users in " + occupied + " rooms ("
+                    + DISTRIBUTION + ", largest " + largest + "), " + RATE + " msg/s per user for " + DURATION + " s, "
+                    + THREADS + " threads");
+
+            // Dealing the users out to the workers.
+            Worker[] workers = new Worker[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                workers[i] = new Worker();
+            }
+            for (int i = 0; i < USERS; i++) {
+                workers[i % THREADS].addUser(i, "load-" + roomOf[i]);
+            }
+            Thread[] threads = new Thread[THREADS];
+            long start = System.nanoTime();
+            for (int i = 0; i < THREADS; i++) {
+                threads[i] = new Thread(workers[i], "load-worker-" + i);
+                threads[i].start();
+            }
+
+            // Connect phase: waiting until every user has joined its room or failed.
+            long rampSeconds = CONNECT_RATE > 0 ? USERS / CONNECT_RATE : 0;
+            long deadline = start + TimeUnit.SECONDS.toNanos(rampSeconds + 30);
+            while (joined.sum() + failed.sum() < USERS && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            double setupSeconds = (System.nanoTime() - start) / 1e9;
+            long connectedUsers = joined.sum();
+            System.out.printf("Connected %d users in %.2f s (%.0f connections/s), %d failed%n",
+                    connectedUsers, setupSeconds, connectedUsers / setupSeconds, USERS - connectedUsers);
+
+            // Chat phase, with a progress line every second.
+            phase = CHAT;
+            long chatStart = System.nanoTime();
+            long lastSent = 0, lastReceived = 0;
+            for (int second = 1; second <= DURATION; second++) {
+                Thread.sleep(Math.max(0, chatStart + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1_000_000);
+                long nowSent = sent.sum(), nowReceived = received.sum();
+                System.out.printf("[%3d s] sent %d msg/s, delivered %d msg/s%n", second, nowSent - lastSent, nowReceived - lastReceived);
+                lastSent = nowSent;
+                lastReceived = nowReceived;
+            }
+            double chatSeconds = (System.nanoTime() - chatStart) / 1e9;
+            long totalSent = sent.sum();
+            long totalReceived = received.sum();
+
+            // Leave phase: every user leaves and exits; giving the server a few seconds to close the connections.
+            phase = LEAVE;
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (closed.sum() < connectedUsers && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            phase = STOP;
+            LatencyHistogram setup = new LatencyHistogram();
+            LatencyHistogram latency = new LatencyHistogram();
+            for (int i = 0; i < THREADS; i++) {
+                workers[i].selector.wakeup();
+                threads[i].join();
+                setup.add(workers[i].setup);
+                latency.add(workers[i].latency);
+            }
+
+            // Report.
+            System.out.println();
+            System.out.printf("Connection setup (connect to joined, us): %s%n", setup.summary());
+            System.out.printf("Throughput: %.0f msg/s sent, %.0f msg/s delivered (%.1f recipients per message, %.1f MB/s received)%n",
+                    totalSent / chatSeconds, totalReceived / chatSeconds,
+                    totalSent == 0 ? 0.0 : (double) totalReceived / totalSent, bytesReceived.sum() / chatSeconds / 1e6);
+            System.out.printf("Fan-out latency (send to delivery, us): %s%n", latency.summary());
+            System.out.printf("Closed %d of %d connections after leaving%n", closed.sum(), connectedUsers);
+        }
+
+        // Method to assign each user a room so that the room sizes follow the configured distribution. Users are
+        // placed by quantile rather than at random, so the sizes are the same on every run.
+        private static int[] assignRooms() {
+            double[] cumulative = new double[ROOMS];
+            double total = 0;
+            for (int k = 0; k < ROOMS; k++) {
+                total += "zipf".equalsIgnoreCase(DISTRIBUTION) ? 1.0 / Math.pow(k + 1, ZIPF_EXPONENT) : 1.0;
+                cumulative[k] = total;
+            }
+            int[] roomOf = new int[USERS];
+            int room = 0;
+            for (int i = 0; i < USERS; i++) {
+                double quantile = (i + 0.5) / USERS * total;
+                while (room < ROOMS - 1 && cumulative[room] < quantile) {
+                    room++;
+                }
+                roomOf[i] = room;
+            }
+            return roomOf;
+        }
+
+        // Nested class for a selector thread driving a share of the users.
+        private class Worker implements Runnable {
+            // Users driven by this worker.
+            private final List<SimulatedUser> users = new ArrayList<>();
+            // Selector watching the users' channels.
+            private final Selector selector;
+            // Joined users ordered by the time of their next message.
+            private final PriorityQueue<SimulatedUser> schedule =
+                    new PriorityQueue<>((a, b) -> Long.compare(a.nextSend, b.nextSend));
+            // Read buffer shared by the worker's users, since reads never overlap.
+            private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+            // Latency samples recorded by this worker; merged by the main thread once the worker has stopped.
+            private final LatencyHistogram setup = new LatencyHistogram();
+            private final LatencyHistogram latency = new LatencyHistogram();
+            private final Random random = new Random();
+
+            // Constructor for Worker, opening its selector.
+            public Worker() throws IOException {
+                this.selector = Selector.open();
+            }
+
+            // Run method for the worker's thread.
+            public void run() {
+                long connectInterval = CONNECT_RATE > 0 ? TimeUnit.SECONDS.toNanos(THREADS) / CONNECT_RATE : 0;
+                long nextConnect = System.nanoTime();
+                int connecting = 0;
+                int seenPhase = CONNECT;
+                try {
+                    while (phase != STOP) {
+                        long now = System.nanoTime();
+                        // Opening connections at the configured rate.
+                        while (connecting < users.size() && now >= nextConnect) {
+                            users.get(connecting++).connect(now);
+                            nextConnect += connectInterval;
+                        }
+                        // Starting every user's message clock when the chat phase begins, so nobody bursts.
+                        if (seenPhase != phase) {
+                            seenPhase = phase;
+                            if (seenPhase == CHAT) {
+                                for (SimulatedUser user : schedule) {
+                                    user.nextSend = now + nextInterval();
+                                }
+                                List<SimulatedUser> joinedUsers = new ArrayList<>(schedule);
+                                schedule.clear();
+                                schedule.addAll(joinedUsers);
+                            } else if (seenPhase == LEAVE) {
+                                schedule.clear();
+                                for (SimulatedUser user : users) {
+                                    user.leave();
+                                }
+                            }
+                        }
+                        // Sending every message that is due.
+                        while (seenPhase == CHAT && !schedule.isEmpty() && schedule.peek().nextSend <= now) {
+                            SimulatedUser user = schedule.poll();
+                            user.sendMessage();
+                            user.nextSend += nextInterval();
+                            schedule.add(user);
+                        }
+
+                        // Sleeping until the next connection or message is due, or a channel is ready.
+                        long wake = now + TimeUnit.MILLISECONDS.toNanos(100);
+                        if (connecting < users.size()) {
+                            wake = Math.min(wake, nextConnect);
+                        }
+                        if (seenPhase == CHAT && !schedule.isEmpty()) {
+                            wake = Math.min(wake, schedule.peek().nextSend);
+                        }
+                        long timeout = TimeUnit.NANOSECONDS.toMillis(wake - now);
+                        if (timeout > 0) {
+                            selector.select(timeout);
+                        } else {
+                            selector.selectNow();
+                        }
+
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            ((SimulatedUser) key.attachment()).onReady(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Load worker error: " + e.getMessage());
+                } finally {
+                    schedule.clear();
+                    for (SimulatedUser user : users) {
+                        user.close();
+                    }
+                    try {
+                        selector.close();
+                    } catch (IOException ignored) {
+                        // The worker is done either way.
+                    }
+                }
+            }
+
+            // Method to add a user for this worker to drive.
+            void addUser(int id, String room) {
+                users.add(new SimulatedUser(id, room));
+            }
+
+            // Method to draw the time to a user's next message, exponentially distributed around 1 / RATE.
+            private long nextInterval() {
+                return RATE <= 0 ? Long.MAX_VALUE / 4 : (long) (-Math.log(1 - random.nextDouble()) / RATE * 1e9);
+            }
+
+            // Nested class for one simulated user: its connection, the line it is receiving and its output.
+            private class SimulatedUser {
+                private final int id;
+                private final String room;
+                private SocketChannel channel;
+                private SelectionKey key;
+                // Bytes of the line currently being received.
+                private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+                // Output not yet accepted by the socket.
+                private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+                private long connectStart;
+                private long nextSend;
+                private boolean joinedRoom;
+                private boolean done;
+
+                // Constructor for SimulatedUser.
+                SimulatedUser(int id, String room) {
+                    this.id = id;
+                    this.room = room;
+                }
+
+                // Method to start connecting to the server.
+                void connect(long now) {
+                    connectStart = now;
+                    try {
+                        channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        boolean connected = channel.connect(addresses[id % addresses.length]);
+                        key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                        if (connected) {
+                            greet();
+                        }
+                    } catch (IOException e) {
+                        fail();
+                    }
+                }
+
+                // Method to send the user's name and join its room.
+                private void greet() throws IOException {
+                    write("user-" + id + "\n/join " + room + "\n");
+                }
+
+                // Method to handle a ready channel.
+                void onReady(SelectionKey readyKey) {
+                    try {
+                        if (readyKey.isConnectable()) {
+                            channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                            greet();
+                            return;
+                        }
+                        if (readyKey.isWritable()) {
+                            flush();
+                        }
+                        if (readyKey.isReadable()) {
+                            read();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        fail();
+                    }
+                }
+
+                // Method to read available bytes and handle each complete line.
+                private void read() throws IOException {
+                    ByteBuffer buffer = readBuffer;
+                    buffer.clear();
+                    int count = channel.read(buffer);
+                    if (count < 0) {
+                        if (!done) {
+                            done = true;
+                            closed.increment();
+                        }
+                        close();
+                        return;
+                    }
+                    bytesReceived.add(count);
+                    long now = System.nanoTime();
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        byte b = buffer.get();
+                        if (b == '\n') {
+                            onLine(partialLine.toString(StandardCharsets.UTF_8), now);
+                            partialLine.reset();
+                        } else {
+                            partialLine.write(b);
+                        }
+                    }
+                }
+
+                // Method to handle one line from the server: the join confirmation or a stamped chat message.
+                private void onLine(String line, long now) {
+                    int stamp = line.indexOf(STAMP);
+                    if (stamp >= 0) {
+                        long sentAt = 0;
+                        for (int i = stamp + STAMP.length(); i < line.length() && Character.isDigit(line.charAt(i)); i++) {
+                            sentAt = sentAt * 10 + (line.charAt(i) - '0');
+                        }
+                        latency.record((now - sentAt) / 1000);
+                        received.increment();
+                    } else if (!joinedRoom && line.startsWith("You have successfully joined the room: ")) {
+                        joinedRoom = true;
+                        setup.record((now - connectStart) / 1000);
+                        joined.increment();
+                        nextSend = now + nextInterval();
+                        schedule.add(this);
+                    }
+                }
+
+                // Method to send one chat message stamped with the current time, padded to MESSAGE_BYTES.
+                void sendMessage() {
+                    StringBuilder message = new StringBuilder(MESSAGE_BYTES + 1)
+                            .append('@').append(RUN_ID).append('.').append(System.nanoTime()).append(' ');
+                    while (message.length() < MESSAGE_BYTES) {
+                        message.append('x');
+                    }
+                    try {
+                        write(message.append('\n').toString());
+                        sent.increment();
+                    } catch (IOException | CancelledKeyException e) {
+                        fail();
+                    }
+                }
+
+                // Method to leave the room and exit; the server closes the connection after its goodbye.
+                void leave() {
+                    if (joinedRoom && !done) {
+                        try {
+                            write("/leave\n/exit\n");
+                        } catch (IOException | CancelledKeyException e) {
+                            fail();
+                        }
+                    }
+                }
+
+                // Method to write a line, queueing whatever the socket does not take right away.
+                private void write(String text) throws IOException {
+                    if (channel == null || !channel.isOpen()) {
+                        return;
+                    }
+                    pending.add(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+                    flush();
+                }
+
+                // Method to write queued output until the socket buffer is full.
+                private void flush() throws IOException {
+                    while (!pending.isEmpty()) {
+                        ByteBuffer buffer = pending.peek();
+                        channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        pending.poll();
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+
+                // Method to count a user whose connection broke, then close it.
+                private void fail() {
+                    if (!done) {
+                        done = true;
+                        if (!joinedRoom) {
+                            failed.increment();
+                        }
+                    }
+                    close();
+                }
+
+                // Method to close the connection.
+                void close() {
+                    schedule.remove(this);
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // Nothing left to do for a channel that fails to close.
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
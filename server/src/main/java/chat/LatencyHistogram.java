@@ -0,0 +1,105 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+// Latency histogram shared by the server's metrics and the load generator. Values are counted in log-linear
+// buckets, as in HdrHistogram: 64 linear sub-buckets per power of two, so any value is kept within about 1.6% in
+// constant memory. Any thread can record without locking; concurrent recordings only contend when they land in
+// the same bucket.
+class LatencyHistogram {
+    // Number of linear sub-buckets per power of two, as a power of two.
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Counts per bucket; values below 2 * SUB_BUCKETS are counted exactly.
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    // Highest value recorded.
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // Method to record one value (negative values count as zero).
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        max.accumulate(value);
+    }
+
+    // Method to add another histogram's counts to this one.
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        max.accumulate(other.max.get());
+    }
+
+    // Method to get the number of recorded values.
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // Method to get the highest value recorded; 0 when empty.
+    public long getMax() {
+        return max.get();
+    }
+
+    // Method to get the value at the given percentile, as the highest value of its bucket but no more than the
+    // highest value recorded; 0 when empty.
+    public long percentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length && total > 0; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    // Method to summarize the distribution on one line, in the recorded unit.
+    public String summary() {
+        return summary(1);
+    }
+
+    // Method to summarize the distribution on one line, with every value divided by the given scale (1000 to show
+    // values recorded in nanoseconds as microseconds).
+    public String summary(long scale) {
+        long count = getCount();
+        if (count == 0) {
+            return "no samples";
+        }
+        return String.format("p50 %d, p90 %d, p99 %d, p99.9 %d, max %d (%d samples)", percentile(50) / scale,
+                percentile(90) / scale, percentile(99) / scale, percentile(99.9) / scale, getMax() / scale, count);
+    }
+
+    // Method to get the bucket of a value: exact below 2 * SUB_BUCKETS, then SUB_BUCKETS per power of two.
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Method to get the highest value counted in a bucket.
+    private static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
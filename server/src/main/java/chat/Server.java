@@ -0,0 +1,3695 @@
+/*
+
+	Richard Delforge, Cameron Devenport, Johnny Do
+	Chat Room Project
+	COSC 4333 - Distributed Systems
+	Dr. Sun
+	11/27/2023
+	
+*/
+
+package chat;
+
+// Importing necessary Java libraries for networking, input-output operations, concurrency and monitoring.
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Server class to handle chat room operations and client connections. The classes on the hot paths are
+// package-private so the benchmarks module (same package) can drive them directly.
+public class Server {
+    // Default port number for the server.
+    private static final int DEFAULT_PORT = 9025;
+    // Longest line (in bytes) the event loop will buffer for a single client before dropping the connection.
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // Number of recent messages each room keeps in memory (-Dchat.history.size).
+    private static final int HISTORY_SIZE = Integer.getInteger("chat.history.size", 100);
+    // Number of recent messages replayed to a client joining a room (-Dchat.history.replay).
+    private static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 20);
+    // Directory holding the room message logs, e.g. chat-logs; empty, the default, keeps history in memory only
+    // (-Dchat.log.dir).
+    private static final String LOG_DIR = System.getProperty("chat.log.dir", "");
+    // Size of each memory-mapped log segment (-Dchat.log.segmentBytes).
+    private static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 1024 * 1024);
+    // Interval between forcing dirty log segments to disk, i.e. the group commit window (-Dchat.log.flushMs).
+    private static final int LOG_FLUSH_MS = Integer.getInteger("chat.log.flushMs", 1000);
+    // Number of log segments kept per room; older ones are deleted on rotation (-Dchat.log.retainSegments).
+    private static final int LOG_RETAIN_SEGMENTS = Integer.getInteger("chat.log.retainSegments", 16);
+    // Sources of the integer IDs used for rooms and clients in the binary protocol.
+    private static final AtomicInteger nextRoomId = new AtomicInteger();
+    private static final AtomicInteger nextClientId = new AtomicInteger();
+    // Size of the buffer a writer copies queued output into for each socket write.
+    private static final int WRITE_BUFFER_BYTES = 16 * 1024;
+    // Interval at which coalesced chat output is flushed, in milliseconds; 0 wakes the writer for every message
+    // (-Dchat.flush.tickMs).
+    private static final int FLUSH_TICK_MS = Integer.getInteger("chat.flush.tickMs", 0);
+    // Queued bytes at which a coalescing outbox flushes without waiting for the tick (-Dchat.flush.bytes).
+    private static final int FLUSH_BYTES = Integer.getInteger("chat.flush.bytes", 16 * 1024);
+    // Rooms shown per page of /listrooms (-Dchat.rooms.pageSize).
+    private static final int ROOM_PAGE_SIZE = Integer.getInteger("chat.rooms.pageSize", 50);
+    // Interval between refreshes of the room directory snapshot served to /listrooms (-Dchat.rooms.refreshMs).
+    private static final int ROOM_REFRESH_MS = Integer.getInteger("chat.rooms.refreshMs", 1000);
+    // Number of rooms kept in the snapshot's ranking by users, the most /listrooms --top can show.
+    private static final int ROOM_TOP_SIZE = 100;
+    // Rooms with at least this many members have each broadcast split into shards queued in parallel
+    // (-Dchat.fanout.parallelThreshold).
+    private static final int PARALLEL_FANOUT_THRESHOLD = Integer.getInteger("chat.fanout.parallelThreshold", 4096);
+    // Most members queued to by one shard of a parallel broadcast (-Dchat.fanout.shardSize).
+    private static final int FANOUT_SHARD_SIZE = Integer.getInteger("chat.fanout.shardSize", 1024);
+    // Work-stealing pool running the shards of parallel broadcasts; its threads are daemons (-Dchat.fanout.threads).
+    private static final ForkJoinPool fanoutPool =
+            new ForkJoinPool(Integer.getInteger("chat.fanout.threads", Runtime.getRuntime().availableProcessors()));
+    // Tick of the timing wheel running idle timeouts and room teardown, in milliseconds (-Dchat.timer.tickMs).
+    private static final int TIMER_TICK_MS = Integer.getInteger("chat.timer.tickMs", 100);
+    // Time without input after which a client is disconnected, in milliseconds; 0 never disconnects idle clients
+    // (-Dchat.idle.timeoutMs).
+    private static final int IDLE_TIMEOUT_MS = Integer.getInteger("chat.idle.timeoutMs", 10 * 60 * 1000);
+    // Time an empty room stays open, with its history loaded, for members to come back before it is closed, in
+    // milliseconds; 0 closes it as soon as it empties (-Dchat.room.graceMs).
+    private static final int ROOM_GRACE_MS = Integer.getInteger("chat.room.graceMs", 5000);
+    // Length of the queue of connections waiting to be accepted (-Dchat.accept.backlog).
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("chat.accept.backlog", 50);
+    // Most client connections open at once; further clients are turned away, 0 admits everyone. Defaults to
+    // 100000 on the event loops and 10000 on virtual threads; the fixed pool never admits more than its threads
+    // (-Dchat.connections.max).
+    private static final int MAX_CONNECTIONS = Integer.getInteger("chat.connections.max", -1);
+    // Number of threads serving clients in the default, fixed-pool mode (-Dchat.pool.threads).
+    private static final int POOL_THREADS = Integer.getInteger("chat.pool.threads", 10);
+    // Messages per second one client may send, and how many it may send in a burst; a rate of 0 is unlimited
+    // (-Dchat.rate.client, -Dchat.rate.clientBurst).
+    private static final int CLIENT_RATE = Integer.getInteger("chat.rate.client", 20);
+    private static final int CLIENT_BURST = Integer.getInteger("chat.rate.clientBurst", 40);
+    // Messages per second one room accepts from the clients on this server, and its burst; a rate of 0 is
+    // unlimited (-Dchat.rate.room, -Dchat.rate.roomBurst).
+    private static final int ROOM_RATE = Integer.getInteger("chat.rate.room", 1000);
+    private static final int ROOM_BURST = Integer.getInteger("chat.rate.roomBurst", 2000);
+    // Time a dropped client's session is kept, in its room and collecting its messages, for the client to resume
+    // it, in milliseconds; 0 issues no session tokens (-Dchat.session.graceMs).
+    private static final int SESSION_GRACE_MS = Integer.getInteger("chat.session.graceMs", 30000);
+    // Sessions whose connection dropped, by token, waiting to be resumed or to expire.
+    private static final Map<String, ClientHandler> parkedSessions = new ConcurrentHashMap<>();
+    // Source of session tokens.
+    private static final SecureRandom tokens = new SecureRandom();
+    // Timing wheel shared by all idle timeouts and room teardowns; its thread is a daemon.
+    static final TimingWheel timers = new TimingWheel("timing-wheel", TIMER_TICK_MS);
+    // ConcurrentHashMap to store active chat rooms, allowing thread-safe operations.
+    static Map<String, ChatRoomHandler> chatRooms = new ConcurrentHashMap<>();
+    // Factory for the per-connection writer threads; virtual threads in "virtual" mode.
+    private static ThreadFactory threadFactory = Thread::new;
+    // Maximum number of messages waiting for one client before the overflow policy applies (-Dchat.outbox.capacity).
+    private static final int OUTBOX_CAPACITY = Integer.getInteger("chat.outbox.capacity", 1024);
+    // What to do when a client's outbound queue is full (-Dchat.outbox.policy=drop-oldest|drop-newest|disconnect).
+    private static final OverflowPolicy OUTBOX_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("chat.outbox.policy", "drop-oldest").toUpperCase().replace('-', '_'));
+    // Outbound queues of all connected clients, used to report queue depths and drops on the metrics endpoint.
+    private static Set<Outbox> outboxes = ConcurrentHashMap.newKeySet();
+    // Cluster this server belongs to, or null when it runs alone (-Dchat.cluster.self, -Dchat.cluster.peers).
+    private static Cluster cluster;
+
+    // Main method - entry point of the server application.
+    public static void main(String[] args) {
+
+        // Variables for IP address and port, initialized with default values.
+        String ipAddress = "0.0.0.0"; // Default IP address to listen on all interfaces.
+        int port = DEFAULT_PORT;        // Default port for the server.
+
+        // Execution mode: "pool" (thread per connection from a fixed pool), "virtual" (virtual thread per
+        // connection, Java 21+) or "nio" (selector event loops).
+        String mode = "pool";
+
+        // Checking command-line arguments for custom IP address, port and mode.
+        if (args.length > 0) {
+            ipAddress = args[0]; // Get IP address from the first command-line argument.
+            if (args.length > 1) {
+                port = Integer.parseInt(args[1]); // Get port from the second command-line argument, if provided.
+            }
+            if (args.length > 2) {
+                mode = args[2]; // Get execution mode from the third command-line argument, if provided.
+            }
+        }
+
+        // Publishing the server's metrics over JMX and, when configured, the plain-text endpoint.
+        Metrics.start();
+
+        // Joining a cluster of servers when this node's link address is configured.
+        String clusterSelf = System.getProperty("chat.cluster.self");
+        if (clusterSelf != null) {
+            cluster = new Cluster(clusterSelf, System.getProperty("chat.cluster.peers", ""));
+            try {
+                cluster.start();
+            } catch (IOException ex) {
+                System.out.println("Cluster exception: " + ex.getMessage());
+                return;
+            }
+        }
+
+        // Running the non-blocking event loop server when requested.
+        if ("nio".equalsIgnoreCase(mode)) {
+            Admission.setLimit(MAX_CONNECTIONS >= 0 ? MAX_CONNECTIONS : 100000);
+            try {
+                new NioServer(ipAddress, port).start();
+            } catch (IOException ex) {
+                // Logging server exceptions.
+                System.out.println("Server exception: " + ex.getMessage());
+                ex.printStackTrace();
+            }
+            return;
+        }
+
+        // Creating a thread pool with a fixed number of threads for handling client requests. Each client holds a
+        // thread until it leaves, so admitting more clients than threads would only leave them waiting unanswered.
+        Executor pool = Executors.newFixedThreadPool(POOL_THREADS);
+        Admission.setLimit(MAX_CONNECTIONS > 0 ? Math.min(MAX_CONNECTIONS, POOL_THREADS) : POOL_THREADS);
+
+        // Running every client and chat room on its own virtual thread when requested and supported.
+        if ("virtual".equalsIgnoreCase(mode)) {
+            ThreadFactory virtualThreads = virtualThreadFactory();
+            if (virtualThreads != null) {
+                threadFactory = virtualThreads;
+                pool = task -> threadFactory.newThread(task).start();
+                Admission.setLimit(MAX_CONNECTIONS >= 0 ? MAX_CONNECTIONS : 10000);
+            } else {
+                System.out.println("Virtual threads need Java 21 or later; using the fixed thread pool.");
+            }
+        }
+
+        // Listening through a blocking channel so each client socket has a channel for gathering writes.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(ipAddress), port), ACCEPT_BACKLOG);
+            // Display the port the server is listening on
+            System.out.println("Server on Port: " + serverChannel.socket().getLocalPort());
+
+            // Server's main loop to accept client connections.
+            while (true) {
+                // Accepting a connection from a client, or turning it away when the server is full.
+                SocketChannel channel = serverChannel.accept();
+                if (!Admission.tryAdmit()) {
+                    Admission.reject(channel);
+                    continue;
+                }
+                Socket clientSocket = channel.socket();
+                Metrics.acceptedConnections.increment();
+                // Logging the IP address of the connected client.
+                AsyncLogger.log("Client connected from " + clientSocket.getInetAddress().getHostAddress());
+                // Assigning a new task (client handling) to the thread pool.
+                pool.execute(new ClientHandler(clientSocket));
+            }
+        } catch (IOException ex) {
+            // Logging server exceptions.
+            System.out.println("Server exception: " + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+
+    // Method to build a factory for virtual threads. Looked up reflectively so the server still compiles and
+    // runs on Java 17; returns null when the runtime has no virtual threads.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Method to encode a line of text once into an immutable direct buffer that can be shared by every recipient.
+    static ByteBuffer encodeLine(String line) {
+        byte[] bytes = (line + System.lineSeparator()).getBytes(Charset.defaultCharset());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Method to encode a line of text for a single recipient on the heap; a direct buffer only pays off when
+    // shared by many.
+    static ByteBuffer encodeReply(String line) {
+        return ByteBuffer.wrap((line + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+    }
+
+    // Method to get the room with the given name, creating it if needed, with a reference held for the caller.
+    // A room found closing is dropped from the map and the lookup retried, so callers never end up in a room
+    // that has already been torn down.
+    static ChatRoomHandler acquireRoom(String roomName) {
+        while (true) {
+            ChatRoomHandler room = chatRooms.get(roomName);
+            if (room == null) {
+                room = chatRooms.computeIfAbsent(roomName, k -> {
+                    AsyncLogger.log("Created chat room: " + roomName);
+                    ChatRoomHandler created = new ChatRoomHandler(roomName);
+                    RoomDirectory.add(created);
+                    return created;
+                });
+            }
+            if (room.acquire()) {
+                return room;
+            }
+            chatRooms.remove(roomName, room);
+        }
+    }
+
+    // Nested class for handling individual chat rooms. Rooms are addressed by name over each client's main
+    // connection, so creating one is just a map insert: no listening socket, port or thread of its own.
+    // A room's lifetime is a reference count of its local clients and remote subscribers: taking a reference
+    // fails once the count has dropped to zero and the room has closed, so join and leave never need a lock.
+    // A room that empties stays open for ROOM_GRACE_MS, so members that come straight back find it as they left it.
+    static class ChatRoomHandler {
+        // Reference count value of a closed room.
+        private static final int CLOSED = Integer.MIN_VALUE;
+        // Single daemon thread closing rooms whose grace period is over; closing syncs the room's log to disk, which
+        // must not hold up the timing wheel.
+        private static final ExecutorService closer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "room-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Name of the chat room.
+        private String roomName;
+        // ID of the chat room in the binary protocol.
+        private final int roomId = nextRoomId.incrementAndGet();
+        // Clients (outbound queues) in the chat room, as an immutable array replaced on every join and leave,
+        // so a broadcast walks a plain array snapshot.
+        private final AtomicReference<Outbox[]> clients = new AtomicReference<>(new Outbox[0]);
+        // Number of references held on the room, or CLOSED.
+        private final AtomicInteger references = new AtomicInteger();
+        // Number of clients in the room speaking the binary protocol.
+        private final AtomicInteger binaryClients = new AtomicInteger();
+        // Message history of the room; opened lazily, so creating a room stays a map insert.
+        private final RoomLog log;
+        // Cluster node owning the room, or null when running alone.
+        private volatile String ownerNode;
+        // On the owner: other nodes with members in the room, which get every message relayed.
+        private final Set<String> remoteSubscribers = ConcurrentHashMap.newKeySet();
+        // On other nodes: whether this node has subscribed to the owner.
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        // Lock taken to log a message together with its recipients, and to add a client together with its replay.
+        private final Object deliveryLock = new Object();
+        // Messages delivered into the room on this node, and copies queued for its clients.
+        private final LongAdder messagesIn = new LongAdder();
+        private final LongAdder messagesOut = new LongAdder();
+        // Rate limit on the messages clients of this server send into the room.
+        private final TokenBucket sendRate = new TokenBucket(ROOM_RATE, ROOM_BURST);
+        // Time the room last became empty, and whether a teardown timeout is pending for it.
+        private volatile long emptySince;
+        private final AtomicBoolean teardownScheduled = new AtomicBoolean();
+
+        // Constructor for ChatRoomHandler.
+        public ChatRoomHandler(String roomName) {
+            this.roomName = roomName;
+            this.log = new RoomLog(roomName);
+            this.ownerNode = cluster == null ? null : cluster.ownerOf(roomName);
+        }
+
+        // Getter method for the chat room's name.
+        public String getRoomName() {
+            return roomName;
+        }
+
+        // Getter method for the chat room's message history.
+        public RoomLog getLog() {
+            return log;
+        }
+
+        // Getter method for the chat room's ID.
+        public int getRoomId() {
+            return roomId;
+        }
+
+        // Method to take a reference on the room; fails if the room has already closed.
+        public boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count == CLOSED) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        // Method to drop a reference on the room, closing it when it was the last, once the grace period is over.
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                if (ROOM_GRACE_MS <= 0) {
+                    removeIfEmpty();
+                    return;
+                }
+                emptySince = System.nanoTime();
+                // One pending teardown per room: it waits out the remainder if the room emptied again meanwhile.
+                if (teardownScheduled.compareAndSet(false, true)) {
+                    timers.schedule(this::teardown, ROOM_GRACE_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        // Method run by the timing wheel to close the room, on the closer thread, if it has stayed empty for the whole
+        // grace period.
+        private void teardown() {
+            long empty = System.nanoTime() - emptySince;
+            long grace = TimeUnit.MILLISECONDS.toNanos(ROOM_GRACE_MS);
+            if (references.get() == 0 && empty < grace) {
+                timers.schedule(this::teardown, grace - empty, TimeUnit.NANOSECONDS);
+                return;
+            }
+            teardownScheduled.set(false);
+            closer.execute(this::removeIfEmpty);
+        }
+
+        // Method to add a client (outbound queue) to the chat room. The caller must hold a reference.
+        public void addClient(Outbox client) {
+            while (true) {
+                Outbox[] current = clients.get();
+                if (indexOf(current, client) >= 0) {
+                    return;
+                }
+                Outbox[] next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = client;
+                if (clients.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            if (client.isBinary()) {
+                binaryClients.incrementAndGet();
+            }
+        }
+
+        // Method to remove a client from the chat room, releasing the reference it was added under.
+        public void removeClient(Outbox client) {
+            while (true) {
+                Outbox[] current = clients.get();
+                int index = indexOf(current, client);
+                if (index < 0) {
+                    return;
+                }
+                Outbox[] next = new Outbox[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, next.length - index);
+                if (clients.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            if (client.isBinary()) {
+                binaryClients.decrementAndGet();
+            }
+            release();
+        }
+
+        // Method to put a resumed session's new outbox in place of its old one, keeping the old one's reference.
+        public void replaceClient(Outbox previous, Outbox client) {
+            while (true) {
+                Outbox[] current = clients.get();
+                int index = indexOf(current, previous);
+                if (index < 0) {
+                    return;
+                }
+                Outbox[] next = current.clone();
+                next[index] = client;
+                if (clients.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        // Method to find a client in a member snapshot.
+        private static int indexOf(Outbox[] members, Outbox client) {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == client) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Method to check whether a client is in the room.
+        public boolean hasClient(Outbox client) {
+            return indexOf(clients.get(), client) >= 0;
+        }
+
+        // Method to close the room and remove it from the map of chat rooms if nothing holds a reference on it.
+        public void removeIfEmpty() {
+            if (references.compareAndSet(0, CLOSED)) {
+                chatRooms.remove(roomName, this);
+                RoomDirectory.remove(this);
+                log.close();
+                if (cluster != null) {
+                    cluster.roomRemoved(this);
+                }
+            }
+        }
+
+        // Method to add a node subscribed to the room; each subscriber holds a reference.
+        public void addSubscriber(String node) {
+            if (!remoteSubscribers.add(node)) {
+                release();
+            }
+        }
+
+        // Method to drop a subscribed node, releasing its reference.
+        public void removeSubscriber(String node) {
+            if (remoteSubscribers.remove(node)) {
+                release();
+            }
+        }
+
+        // Method to record a message and deliver it to the room's clients here and, when this node owns the
+        // room, to every subscribed node.
+        public void publish(HistoryEntry entry) {
+            deliver(entry);
+            if (cluster != null) {
+                cluster.relay(this, entry);
+            }
+        }
+
+        // Method to record a message in the room's history and broadcast it to the room's clients on this node.
+        public void deliver(HistoryEntry entry) {
+            messagesIn.increment();
+            Metrics.messagesIn.increment();
+            // Logging the message and taking the recipients together, so a client joining meanwhile gets it
+            // either in its replay or live, never both.
+            Outbox[] members;
+            synchronized (deliveryLock) {
+                log.append(entry);
+                members = clients.get();
+            }
+            // Formatting the message with a timestamp and encoding it once per wire format in the room.
+            String formattedMessage = "\n" + "[" + MessageClock.now() + "] " + (entry.sender + ": " + entry.text).trim();
+            ByteBuffer binaryMessage = hasBinaryClients()
+                    ? BinaryProtocol.roomMessage(roomId, entry.senderId, entry.millis, entry.sender, entry.text, true)
+                    : null;
+            // Broadcasting the message to all clients in the chat room, timing the fan-out.
+            long start = System.nanoTime();
+            int recipients = broadcastMessage(members, encodeLine(formattedMessage), binaryMessage);
+            Metrics.fanoutLatencyFor(recipients).record(System.nanoTime() - start);
+        }
+
+        // Method to broadcast an encoded message to all clients in the chat room. Each client gets the same
+        // buffer for its wire format queued on its own outbox, so a stalled peer never blocks the sender or the
+        // other members. The binary encoding may be null when no binary client was in the room. Returns the
+        // number of clients the message was queued for.
+        //
+        // Large rooms are split into shards queued in parallel on the fan-out pool. The sending thread waits for
+        // every shard, so a sender's next message is only queued once this one is queued for everyone, and each
+        // recipient still sees a sender's messages in order.
+        public int broadcastMessage(ByteBuffer text, ByteBuffer binary) {
+            return broadcastMessage(clients.get(), text, binary);
+        }
+
+        // Method to broadcast an encoded message to a snapshot of the room's clients.
+        private int broadcastMessage(Outbox[] members, ByteBuffer text, ByteBuffer binary) {
+            int recipients = members.length >= PARALLEL_FANOUT_THRESHOLD && fanoutPool.getParallelism() > 1
+                    ? fanoutPool.invoke(new FanoutShard(members, 0, members.length, text, binary))
+                    : offerAll(members, 0, members.length, text, binary);
+            messagesOut.add(recipients);
+            Metrics.messagesOut.add(recipients);
+            return recipients;
+        }
+
+        // Method to queue a message for the members in [from, to) of a snapshot; returns how many got it.
+        static int offerAll(Outbox[] members, int from, int to, ByteBuffer text, ByteBuffer binary) {
+            int recipients = 0;
+            for (int i = from; i < to; i++) {
+                Outbox client = members[i];
+                ByteBuffer message = client.isBinary() ? binary : text;
+                if (message != null) {
+                    client.offer(message);
+                    recipients++;
+                }
+            }
+            return recipients;
+        }
+
+        // Method to check whether any client in the room speaks the binary protocol.
+        public boolean hasBinaryClients() {
+            return binaryClients.get() > 0;
+        }
+
+        // Method to get the number of clients in the chat room.
+        public int getNumberOfClients() {
+            return clients.get().length;
+        }
+
+        // Getter methods for the room's message counters.
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+    }
+    
+    // Nested class for the directory of rooms listed by /listrooms: a sorted concurrent index of the open rooms,
+    // and a snapshot of it (names in order, user counts and a ranking by users) rebuilt every ROOM_REFRESH_MS by
+    // a daemon thread. Listings read the snapshot, so they never walk or lock the live rooms.
+    static class RoomDirectory {
+        // Open rooms by name, kept sorted.
+        private static final ConcurrentSkipListMap<String, ChatRoomHandler> index = new ConcurrentSkipListMap<>();
+        // Latest snapshot of the index.
+        private static volatile Snapshot current = new Snapshot(new String[0], new int[0], new int[0]);
+
+        static {
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "room-directory");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(RoomDirectory::refresh, ROOM_REFRESH_MS, ROOM_REFRESH_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Method to add a newly created room, replacing a closed room of the same name that is still indexed.
+        static void add(ChatRoomHandler room) {
+            index.put(room.getRoomName(), room);
+        }
+
+        // Method to remove a closed room, unless a newer room of the same name has already replaced it.
+        static void remove(ChatRoomHandler room) {
+            index.remove(room.getRoomName(), room);
+        }
+
+        // Method to get the latest snapshot.
+        static Snapshot snapshot() {
+            return current;
+        }
+
+        // Method to rebuild the snapshot: one ordered walk of the index, plus a bounded heap for the ranking.
+        static void refresh() {
+            int capacity = index.size() + 16;
+            String[] names = new String[capacity];
+            int[] users = new int[capacity];
+            int count = 0;
+            PriorityQueue<Integer> largest = new PriorityQueue<>(ROOM_TOP_SIZE + 1, Comparator.comparingInt(i -> users[i]));
+            for (ChatRoomHandler room : index.values()) {
+                if (count == names.length) {
+                    break; // Rooms created during the walk wait for the next refresh.
+                }
+                names[count] = room.getRoomName();
+                users[count] = room.getNumberOfClients();
+                largest.add(count);
+                if (largest.size() > ROOM_TOP_SIZE) {
+                    largest.poll();
+                }
+                count++;
+            }
+            int[] top = new int[largest.size()];
+            for (int i = top.length - 1; i >= 0; i--) {
+                top[i] = largest.poll();
+            }
+            current = new Snapshot(Arrays.copyOf(names, count), Arrays.copyOf(users, count), top);
+        }
+
+        // Nested class for an immutable snapshot of the directory.
+        static class Snapshot {
+            // Room names in sorted order, and the number of users of each.
+            final String[] names;
+            final int[] users;
+            // Indexes of the rooms with the most users, most first.
+            final int[] top;
+            // Time the snapshot was taken, in epoch milliseconds.
+            final long takenAt = System.currentTimeMillis();
+
+            // Constructor for Snapshot.
+            Snapshot(String[] names, int[] users, int[] top) {
+                this.names = names;
+                this.users = users;
+                this.top = top;
+            }
+
+            // Method to find the first room whose name is not less than the given one.
+            int lowerBound(String name) {
+                int low = 0;
+                int high = names.length;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (names[middle].compareTo(name) < 0) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            }
+        }
+    }
+
+    // Nested class for one shard of a parallel broadcast: a range of a member snapshot, split in halves until it
+    // is at most FANOUT_SHARD_SIZE long, so idle pool threads can steal the other halves.
+    private static class FanoutShard extends RecursiveTask<Integer> {
+        // Tasks are Serializable by inheritance only; shards are never serialized.
+        private static final long serialVersionUID = 1L;
+        private final Outbox[] members;
+        private final int from;
+        private final int to;
+        private final ByteBuffer text;
+        private final ByteBuffer binary;
+
+        // Constructor for FanoutShard.
+        FanoutShard(Outbox[] members, int from, int to, ByteBuffer text, ByteBuffer binary) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+            this.text = text;
+            this.binary = binary;
+        }
+
+        // Method to queue the message for the shard's members, returning how many got it.
+        protected Integer compute() {
+            if (to - from <= FANOUT_SHARD_SIZE) {
+                return ChatRoomHandler.offerAll(members, from, to, text, binary);
+            }
+            int middle = (from + to) >>> 1;
+            FanoutShard upper = new FanoutShard(members, middle, to, text, binary);
+            upper.fork();
+            int lower = new FanoutShard(members, from, middle, text, binary).compute();
+            return lower + upper.join();
+        }
+    }
+
+	    // Nested class for handling each client connected to the server.
+    static class ClientHandler implements Runnable {
+        private Socket clientSocket; // Socket for communication with the client.
+        private Outbox outbox; // Bounded queue of output waiting to be written to the client.
+        private PrintWriter out; // Writer to send data to the client, through its outbox.
+        private BufferedReader in; // Reader to receive data from the client.
+        private String currentRoom; // The name of the chat room the client is currently in.
+        private ChatRoomHandler currentRoomHandler; // The chat room the client is in, on which it holds a reference.
+        private String clientName; // The name of the client.
+        private final int clientId = nextClientId.incrementAndGet(); // ID of the client in the binary protocol.
+        private boolean binary; // Whether the client negotiated the binary protocol.
+        private boolean released; // Whether the client's resources have been closed.
+        private IdleWatch idleWatch; // Inactivity watch of a blocking connection.
+        private volatile boolean idled; // Whether the blocking connection was shut down for inactivity.
+        private Thread writerThread; // Writer thread of a blocking connection.
+        private String sessionToken; // Token the client can resume its session with, or null.
+        private volatile TimingWheel.Timeout sessionExpiry; // Expiry of the session while it is parked.
+        private final TokenBucket sendRate = new TokenBucket(CLIENT_RATE, CLIENT_BURST); // Rate limit on the client's messages.
+        private boolean throttleNotified; // Whether the client has been told its messages are being dropped.
+
+        // Constructor for the ClientHandler, initializing it with the client's socket.
+        public ClientHandler(Socket socket) {
+            this.clientSocket = socket;
+            Metrics.connectedClients.increment();
+        }
+
+        // Constructor for a ClientHandler driven by an event loop, which drains the given outbox.
+        public ClientHandler(Outbox outbox) {
+            this.outbox = outbox;
+            this.out = new PrintWriter(new OutboxWriter(outbox), true);
+            Metrics.connectedClients.increment();
+        }
+
+        // The run method of the thread, containing the main logic for client interaction.
+        public void run() {
+            try {
+                // Watching for inactivity: shutting the input down ends the read loop below like a client hang-up.
+                idleWatch = new IdleWatch(() -> {
+                    idled = true;
+                    try {
+                        clientSocket.shutdownInput();
+                    } catch (IOException ignored) {
+                        // The socket is already closed.
+                    }
+                    outbox.releaseReader();
+                });
+                // Setting up the outbox and the writer thread draining it to the client.
+                outbox = new Outbox(() -> {
+                    // Disconnecting a slow consumer: closing the socket ends the read loop below.
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ignored) {
+                        // The socket is already unusable.
+                    }
+                });
+                writerThread = threadFactory.newThread(new SocketWriter(clientSocket, outbox));
+                outbox.setWakeup(() -> LockSupport.unpark(writerThread));
+                writerThread.start();
+
+                // Setting up output and input streams for communication with the client.
+                out = new PrintWriter(new OutboxWriter(outbox), true);
+                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+
+                // Asking the client for their name.
+                greet();
+
+                // Variable to store input from the client.
+                String inputLine;
+                // Continuously reading lines from the client until it exits or disconnects.
+                while ((inputLine = in.readLine()) != null) {
+                    idleWatch.touch();
+                    if (!handleInput(inputLine)) {
+                        break; // Exiting the loop and ending the thread.
+                    }
+                    // Reading no further while the client is not reading its replies.
+                    outbox.awaitCapacity();
+                    if (binary) {
+                        // The client switched to binary frames; it waits for our reply first, so the reader
+                        // holds no buffered input beyond the negotiation line.
+                        readFrames();
+                        break;
+                    }
+                }
+                
+            } catch (IOException ex) {
+                // Handling exceptions related to client communication.
+                AsyncLogger.log("Server exception: " + ex.getMessage());
+            } finally {
+                // Finally block to ensure the client is properly disconnected.
+                if (idleWatch != null) {
+                    idleWatch.stop();
+                }
+                if (idled) {
+                    disconnectIdle();
+                } else if (park()) {
+                    // Ending the writer without closing the outbox, which keeps collecting the session's messages.
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ignored) {
+                        // The socket is already closed.
+                    }
+                    LockSupport.unpark(writerThread);
+                } else {
+                    disconnect();
+                }
+                Admission.release();
+            }
+        }
+
+        // Method to ask a newly connected client for their name.
+        private void greet() {
+            out.println("Enter your name:");
+        }
+
+        // Method to read binary frames from a blocking connection and dispatch them until the client exits.
+        private void readFrames() throws IOException {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            // Frame buffer reused for every frame; it only grows for frames larger than any seen before.
+            ByteBuffer frame = ByteBuffer.allocate(256);
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 1 || length > MAX_LINE_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (frame.capacity() < length) {
+                    frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+                }
+                input.readFully(frame.array(), 0, length);
+                idleWatch.touch();
+                frame.clear().limit(length);
+                if (!BinaryProtocol.dispatch(this, frame.get() & 0xFF, frame)) {
+                    return;
+                }
+                outbox.awaitCapacity();
+            }
+        }
+
+        // Method to check whether the client negotiated the binary protocol.
+        private boolean isBinary() {
+            return binary;
+        }
+
+        // Method to handle one line of input from the client. Returns false once the client has exited.
+        private boolean handleInput(String inputLine) {
+            // The first line from the client is their name, unless it asks for the binary protocol first or
+            // resumes a session.
+            if (clientName == null) {
+                if (inputLine.startsWith("/resume ")) {
+                    resume(inputLine.substring(8).trim());
+                    return true;
+                }
+                if ("/binary".equals(inputLine)) {
+                    // Acknowledging in text; everything after this reply is framed.
+                    out.println("BINARY OK");
+                    binary = true;
+                    outbox.setBinary(true);
+                    return true;
+                }
+                handleName(inputLine);
+                return true;
+            }
+
+            // Handling different commands based on the input.
+            if (inputLine.startsWith("/join ")) {
+                // Handling JOIN command to join a chat room.
+                joinChatRoom(inputLine.substring(6));
+            } else if ("/leave".equals(inputLine)) {
+                // Handling LEAVE command to leave the current chat room.
+                leaveChatRoom();
+            } else if ("/listrooms".equals(inputLine) || inputLine.startsWith("/listrooms ")) {
+                // Handling LISTROOMS command to list active chat rooms: /listrooms [prefix] [--page n] or --top [n].
+                listChatRooms(inputLine.substring(10).trim());
+            } else if ("/history".equals(inputLine) || inputLine.startsWith("/history ")) {
+                // Handling HISTORY command to read older messages of the current room.
+                showHistory(inputLine.substring(8).trim());
+            } else if ("/stats".equals(inputLine)) {
+                // Handling STATS command to show the server's metrics.
+                Metrics.report(out);
+            } else if ("/queues".equals(inputLine)) {
+                // Handling QUEUES command to report the client's own outbound queue.
+                describeOutbox();
+            } else if ("/ping".equals(inputLine)) {
+                // Handling PING command, the keepalive of a client that only reads: reading it was the activity
+                // that keeps the connection open, so there is nothing to answer.
+            } else if ("/exit".equals(inputLine)) {
+                // Handling EXIT command to disconnect the client.
+                return exit();
+            } else {
+                // Sending any other input as a message to the chat room.
+                sendMessageToChatRoom(inputLine);
+            }
+            return true;
+        }
+
+        // Method to disconnect the client at its request, leaving its room first. Returns false, as the client has
+        // exited.
+        boolean exit() {
+            if(currentRoom != null) {
+                leaveChatRoom();
+            }
+            AsyncLogger.log("Client: '" + clientName + "' has disconnected (EXIT command). Time: " +
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            out.println("Exiting the server. Goodbye!");
+            closeResources();
+            return false;
+        }
+
+        // Method to record the client's name and welcome them.
+        void handleName(String name) {
+            clientName = name;
+            outbox.setOwner(clientName);
+            // Sending a welcome message and instructions to the client.
+            String welcome = "Welcome " + clientName + "! You can join a room with /join <room_name>, leave with /leave, list existing chatrooms with /listrooms, see older messages with /history <n>, exit the server with /exit, or send messages.";
+            if (binary) {
+                outbox.send(BinaryProtocol.welcome(clientId, welcome));
+            } else {
+                out.println(welcome);
+                // Issuing the token the client resumes with after a dropped connection.
+                if (SESSION_GRACE_MS > 0) {
+                    byte[] random = new byte[16];
+                    tokens.nextBytes(random);
+                    sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+                    out.println("SESSION " + sessionToken);
+                }
+            }
+        }
+
+        // Method to take over a parked session: the client gets its name and room back, followed by the messages
+        // that queued while it was away, without rejoining.
+        private void resume(String token) {
+            ClientHandler parked = parkedSessions.remove(token);
+            if (parked == null) {
+                out.println("RESUME FAILED: unknown or expired session. Enter your name:");
+                return;
+            }
+            TimingWheel.Timeout expiry = parked.sessionExpiry;
+            if (expiry != null) {
+                expiry.cancel();
+            }
+            Metrics.parkedSessions.decrement();
+            Metrics.resumedSessions.increment();
+            clientName = parked.clientName;
+            outbox.setOwner(clientName);
+            sessionToken = token;
+            currentRoom = parked.currentRoom;
+            currentRoomHandler = parked.currentRoomHandler;
+            out.println("RESUMED Welcome back " + clientName + (currentRoom != null ? ", still in room " + currentRoom : "")
+                    + "; " + parked.outbox.getDepth() + " missed messages follow.");
+            // Moving the queued messages over first; anything still reaching the old outbox is forwarded, until
+            // the room holds the new outbox in its place.
+            parked.outbox.transferTo(outbox);
+            if (currentRoomHandler != null) {
+                currentRoomHandler.replaceClient(parked.outbox, outbox);
+            }
+            AsyncLogger.log("Resumed session of " + clientName);
+        }
+
+        // Method to keep the session of a client whose connection dropped: it stays in its room, with messages
+        // queuing in its outbox, until the client resumes it or SESSION_GRACE_MS passes. Returns false when
+        // there is no session to keep and the client should be disconnected as usual.
+        boolean park() {
+            if (sessionToken == null || released || outbox.isClosed() || outbox.isOverflowed()) {
+                return false;
+            }
+            released = true;
+            outbox.setWakeup(() -> { });
+            Metrics.connectedClients.decrement();
+            Metrics.parkedSessions.increment();
+            parkedSessions.put(sessionToken, this);
+            sessionExpiry = timers.schedule(this::expireSession, SESSION_GRACE_MS, TimeUnit.MILLISECONDS);
+            AsyncLogger.log("Parked session of " + clientName + (currentRoom != null ? " in room " + currentRoom : ""));
+            return true;
+        }
+
+        // Method run by the timing wheel to end a session that was not resumed in time.
+        private void expireSession() {
+            if (!parkedSessions.remove(sessionToken, this)) {
+                return; // Resumed meanwhile.
+            }
+            Metrics.parkedSessions.decrement();
+            leaveChatRoom();
+            out.close();
+            AsyncLogger.log("Session of " + clientName + " expired");
+        }
+
+        // Method to handle a binary chat message addressed to a room by ID.
+        private void sendBinaryMessage(int roomId, String text) {
+            ChatRoomHandler roomHandler = currentRoomHandler;
+            if (roomHandler == null || roomHandler.getRoomId() != roomId) {
+                out.println("You are not in room " + roomId + ".");
+                return;
+            }
+            sendMessageToChatRoom(text);
+        }
+
+        // Method to disconnect a client that sent nothing for IDLE_TIMEOUT_MS.
+        void disconnectIdle() {
+            Metrics.idleDisconnects.increment();
+            out.println("Disconnected after " + IDLE_TIMEOUT_MS / 1000 + " seconds of inactivity.");
+            disconnect();
+        }
+
+        // Method to disconnect the client, leaving its room and closing its resources.
+        private void disconnect() {
+            if (currentRoom != null) {
+                leaveChatRoom();  // Ensuring the client leaves the chat room if still connected.
+            }
+            out.println("SERVER_CLOSE_CONNECTION"); // Informing the client of server-initiated disconnection.
+            closeResources();  // Closing all open resources for this client.
+        }
+
+        // Method to handle client's request to join a chat room.
+        void joinChatRoom(String roomName) {
+            // Retrieving or creating a chat room with the specified name, holding it open before leaving the
+            // current one so that rejoining the same room never closes it.
+            ChatRoomHandler roomHandler = acquireRoom(roomName);
+
+            leaveChatRoom(); // Leaving the current chat room, if any.
+            // Adding the client to the new chat room under the reference taken above, notifying it and replaying
+            // the most recent messages from the room's in-memory ring, all under the room's delivery lock: each
+            // message then reaches the joiner once and in order, replayed if it was logged before the join and
+            // live otherwise.
+            synchronized (roomHandler.deliveryLock) {
+                roomHandler.addClient(outbox);
+                if (binary) {
+                    outbox.send(BinaryProtocol.joined(roomHandler.getRoomId(), roomName));
+                } else {
+                    out.println("You have successfully joined the room: " + roomName);
+                }
+                for (HistoryEntry entry : roomHandler.getLog().recent(HISTORY_REPLAY)) {
+                    sendHistoryEntry(roomHandler, entry);
+                }
+            }
+            currentRoom = roomName;
+            currentRoomHandler = roomHandler;
+            // Subscribing to the room's owner when another node owns it.
+            if (cluster != null) {
+                cluster.roomJoined(roomHandler);
+            }
+        }
+
+        // Method to handle client's request for the last n messages of the current room, read from the log.
+        private void showHistory(String argument) {
+            ChatRoomHandler roomHandler = currentRoomHandler;
+            if (roomHandler == null) {
+                out.println("Join a room to see its history.");
+                return;
+            }
+            int count;
+            try {
+                count = argument.isEmpty() ? HISTORY_REPLAY : Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                out.println("Usage: /history <n>");
+                return;
+            }
+            List<HistoryEntry> entries = roomHandler.getLog().history(Math.max(0, Math.min(count, 10000)));
+            out.println("History of room " + currentRoom + " (" + entries.size() + " messages):");
+            for (HistoryEntry entry : entries) {
+                sendHistoryEntry(roomHandler, entry);
+            }
+        }
+
+        // Method to send one past message to this client in its wire format.
+        private void sendHistoryEntry(ChatRoomHandler roomHandler, HistoryEntry entry) {
+            if (binary) {
+                outbox.send(BinaryProtocol.roomMessage(roomHandler.getRoomId(), entry.senderId, entry.millis, entry.sender, entry.text, false));
+            } else {
+                outbox.send(encodeReply(entry.toLine()));
+            }
+        }
+
+        // Method to handle client's request to leave the current chat room.
+        void leaveChatRoom() {
+            if (currentRoom != null) {
+                // Retrieving the chat room handler for the current room.
+                ChatRoomHandler roomHandler = currentRoomHandler;
+                if (roomHandler != null) {
+                    // Removing the client from the chat room.
+                    roomHandler.removeClient(outbox);
+                    if (binary) {
+                        outbox.send(BinaryProtocol.left(roomHandler.getRoomId()));
+                    } else {
+                        out.println("Left room: " + currentRoom);
+                    }
+                    AsyncLogger.log(clientName + " has left chat room: " + currentRoom);
+                }
+                // Setting the current room to null as the client has left.
+                currentRoom = null;
+                currentRoomHandler = null;
+            }
+        }
+
+        // Method to list the first page of active chat rooms to the client.
+        void listChatRooms() {
+            listChatRooms("");
+        }
+
+        // Method to list one page of active chat rooms, optionally only those whose name starts with a prefix,
+        // or the rooms with the most users. Served from the room directory's snapshot, so a listing costs one
+        // page however many rooms there are.
+        void listChatRooms(String argument) {
+            RoomDirectory.Snapshot snapshot = RoomDirectory.snapshot();
+            String prefix = "";
+            int page = 1;
+            String[] words = argument.isEmpty() ? new String[0] : argument.split("\\s+");
+            try {
+                for (int i = 0; i < words.length; i++) {
+                    if ("--top".equals(words[i])) {
+                        int count = i + 1 < words.length ? Integer.parseInt(words[i + 1]) : 10;
+                        int shown = Math.max(0, Math.min(count, snapshot.top.length));
+                        out.println("Top " + shown + " rooms by users, as of " + MessageClock.format(snapshot.takenAt) + ":");
+                        for (int j = 0; j < shown; j++) {
+                            int room = snapshot.top[j];
+                            out.println(" - " + snapshot.names[room] + " (" + snapshot.users[room] + " users)");
+                        }
+                        return;
+                    } else if ("--page".equals(words[i])) {
+                        // A missing page number fails to parse like a malformed one.
+                        page = Integer.parseInt(i + 1 < words.length ? words[++i] : "");
+                    } else {
+                        prefix = words[i];
+                    }
+                }
+            } catch (NumberFormatException e) {
+                out.println("Usage: /listrooms [prefix] [--page n] | /listrooms --top [n]");
+                return;
+            }
+
+            // Locating the rooms matching the prefix by binary search over the sorted names.
+            int from = snapshot.lowerBound(prefix);
+            int to = prefix.isEmpty() ? snapshot.names.length : snapshot.lowerBound(prefix + Character.MAX_VALUE);
+            int matches = to - from;
+            int pages = Math.max(1, (matches + ROOM_PAGE_SIZE - 1) / ROOM_PAGE_SIZE);
+            page = Math.max(1, Math.min(page, pages));
+            int first = from + (page - 1) * ROOM_PAGE_SIZE;
+            int last = Math.min(to, first + ROOM_PAGE_SIZE);
+            out.println((prefix.isEmpty() ? "Rooms" : "Rooms starting with '" + prefix + "'") + ": " + matches
+                    + ", page " + page + " of " + pages + ", as of " + MessageClock.format(snapshot.takenAt)
+                    + (pages > 1 ? " (/listrooms " + (prefix.isEmpty() ? "" : prefix + " ") + "--page <n> for more)" : ""));
+            for (int i = first; i < last; i++) {
+                out.println(" - " + snapshot.names[i] + " (" + snapshot.users[i] + " users)");
+            }
+        }
+
+        // Method to report the client's own outbound queue; other clients' queues are only shown to operators,
+        // on the metrics endpoint.
+        private void describeOutbox() {
+            out.println("Outbound queue (capacity " + OUTBOX_CAPACITY + ", policy " + OUTBOX_POLICY + "): "
+                    + outbox.getDepth() + " queued, " + outbox.getDropped() + " dropped");
+        }
+
+        // Method to send a message to the chat room.
+        void sendMessageToChatRoom(String message) {
+            if (currentRoom != null) {
+                // Retrieving the chat room handler for the current room.
+                ChatRoomHandler roomHandler = currentRoomHandler;
+                if (roomHandler != null) {
+                    // Dropping the message if the client, or the room as a whole, is over its rate.
+                    if (!sendRate.tryAcquire()) {
+                        Metrics.throttledMessages.increment();
+                        notifyDropped("You are sending messages too fast; some were not delivered.");
+                        return;
+                    }
+                    if (!roomHandler.sendRate.tryAcquire()) {
+                        Metrics.shedMessages.increment();
+                        notifyDropped("Room " + currentRoom + " is too busy; some messages were not delivered.");
+                        return;
+                    }
+                    throttleNotified = false;
+                    HistoryEntry entry = new HistoryEntry(System.currentTimeMillis(), clientId, clientName, message);
+                    // Publishing through the room's owner when clustered, or directly otherwise.
+                    if (cluster != null) {
+                        cluster.publish(roomHandler, entry);
+                    } else {
+                        roomHandler.publish(entry);
+                    }
+                }
+            }                
+        }
+
+        // Method to tell the client its messages are being dropped, once per run of dropped messages.
+        private void notifyDropped(String notice) {
+            if (!throttleNotified) {
+                throttleNotified = true;
+                out.println(notice);
+            }
+        }
+
+        // Method to close all resources associated with this client.
+        private void closeResources() {
+            if (released) {
+                return;
+            }
+            released = true;
+            Metrics.connectedClients.decrement();
+            // Closing the PrintWriter closes the outbox; its writer closes the socket once the queue has drained.
+            if (out != null) out.close();
+        }
+    }
+
+    // Nested class for the non-blocking server: an accepting thread plus one selector event loop per core.
+    static class NioServer {
+        // Address the server listens on.
+        private final InetSocketAddress address;
+        // Event loops that own the accepted connections.
+        private final EventLoop[] loops;
+
+        // Constructor for NioServer, opening one event loop per available processor.
+        public NioServer(String ipAddress, int port) throws IOException {
+            this.address = new InetSocketAddress(InetAddress.getByName(ipAddress), port);
+            this.loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+            }
+        }
+
+        // Method to start the event loops and accept connections until the server socket fails.
+        public void start() throws IOException {
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(address, ACCEPT_BACKLOG);
+                // Display the port the server is listening on
+                System.out.println("Server on Port: " + serverChannel.socket().getLocalPort() + " (nio, " + loops.length + " event loops)");
+
+                // Starting the event loop threads; they serve the acceptor, so they need not keep the JVM alive.
+                for (int i = 0; i < loops.length; i++) {
+                    Thread loopThread = new Thread(loops[i], "event-loop-" + i);
+                    loopThread.setDaemon(true);
+                    loopThread.start();
+                }
+
+                // Accepting connections and handing them to the event loops in round-robin order.
+                int next = 0;
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (!Admission.tryAdmit()) {
+                        Admission.reject(channel);
+                        continue;
+                    }
+                    Metrics.acceptedConnections.increment();
+                    // Logging the IP address of the connected client.
+                    AsyncLogger.log("Client connected from " + channel.socket().getInetAddress().getHostAddress());
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        }
+    }
+
+    // Nested class for a selector event loop serving many non-blocking connections on one thread.
+    private static class EventLoop implements Runnable {
+        // Selector watching the channels owned by this loop.
+        private final Selector selector;
+        // Tasks submitted from other threads, run on the loop thread between selects.
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Read buffer shared by every connection on this loop, since reads never overlap.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        // Write buffer shared by every connection on this loop, for the same reason.
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+        // Constructor for EventLoop, opening its selector.
+        public EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Method to run a task on the loop thread.
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Method to hand a newly accepted channel to this loop.
+        public void register(SocketChannel channel) {
+            execute(() -> new NioConnection(channel, this).open());
+        }
+
+        // Run method for the event loop's thread.
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    runTasks();
+
+                    // Dispatching the ready channels to their connections.
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            // The peer went away; tear the connection down.
+                            connection.dropped();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Event loop exception: " + e.getMessage());
+                }
+            }
+        }
+
+        // Method to run every pending task, keeping the loop alive if one of them fails.
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Nested class for one client connection served by an event loop.
+    private static class NioConnection {
+        // Channel to the client.
+        private final SocketChannel channel;
+        // Event loop owning this connection; all reads, writes and closes happen on its thread.
+        private final EventLoop loop;
+        // Bytes of the line currently being received.
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        // Binary frames being received; only allocated once the client negotiates the binary protocol.
+        private ByteBuffer inbound;
+        // Bounded queue of encoded output waiting to be written, filled from any thread.
+        private final Outbox outbox;
+        // Whether a flush task is already queued on the loop.
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Command handler shared with the blocking server.
+        private final ClientHandler handler;
+        // Selection key of the channel, set once registered.
+        private SelectionKey key;
+        // Whether the handler has already left its room and released its resources.
+        private boolean disconnected;
+        // Whether the channel has been closed.
+        private volatile boolean closed;
+        // Inactivity watch, armed once the channel is registered.
+        private IdleWatch idleWatch;
+        // Whether the client's session was parked, leaving the outbox open for it to resume.
+        private boolean parked;
+        // Whether reading is paused until the client reads the replies already queued for it, and the input
+        // received but not yet handled when it paused.
+        private boolean readPaused;
+        private ByteBuffer held;
+
+        // Constructor for NioConnection, wiring a ClientHandler to an outbox drained by this connection.
+        public NioConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            // Disconnecting a slow consumer happens on the loop thread, like any other failure.
+            this.outbox = new Outbox(() -> loop.execute(this::fail));
+            this.outbox.setWakeup(this::scheduleFlush);
+            this.handler = new ClientHandler(outbox);
+        }
+
+        // Method to register the channel with the loop and greet the client. Runs on the loop thread.
+        public void open() {
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                fail();
+                return;
+            }
+            idleWatch = new IdleWatch(() -> loop.execute(this::idle));
+            handler.greet();
+        }
+
+        // Method to disconnect a client that has been idle too long, letting the notice drain before closing.
+        private void idle() {
+            if (closed || disconnected) {
+                return;
+            }
+            handler.disconnectIdle();
+            exited();
+        }
+
+        // Method to read available bytes and pass each complete line to the handler.
+        public void onReadable() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int read = channel.read(buffer);
+            idleWatch.touch();
+            if (read < 0) {
+                // The client closed its side; park its session or disconnect it as the blocking server does at
+                // end of stream.
+                if (!disconnected) {
+                    disconnected = true;
+                    parked = handler.park();
+                    if (parked) {
+                        shutdown();
+                    } else {
+                        handler.disconnect();
+                    }
+                } else {
+                    shutdown();
+                }
+                return;
+            }
+            buffer.flip();
+            consume(buffer);
+        }
+
+        // Method to handle received bytes, pausing with the rest kept aside as soon as the outbox is full.
+        private void consume(ByteBuffer buffer) {
+            if (handler.isBinary()) {
+                readFrames(buffer);
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b != '\n') {
+                    partialLine.write(b);
+                    if (partialLine.size() > MAX_LINE_LENGTH) {
+                        fail();
+                        return;
+                    }
+                    continue;
+                }
+                if (!handler.handleInput(takeLine())) {
+                    exited();
+                    return;
+                }
+                if (handler.isBinary()) {
+                    // The client negotiated binary frames; anything after the negotiation line is framed.
+                    readFrames(buffer);
+                    return;
+                }
+                if (outbox.isFull()) {
+                    pauseReading(buffer);
+                    return;
+                }
+            }
+        }
+
+        // Method to stop reading from a client whose outbox is at capacity, because it is not reading the
+        // replies to its commands; the input already received but not handled is kept for when flush resumes.
+        private void pauseReading(ByteBuffer rest) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (rest.hasRemaining()) {
+                held = ByteBuffer.allocate(rest.remaining()).put(rest).flip();
+            }
+        }
+
+        // Method to resume reading once the outbox has room again, handling the kept input first.
+        private void resumeReading() {
+            if (readPaused && !disconnected && !closed && !outbox.isFull()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                ByteBuffer rest = held;
+                held = null;
+                consume(rest != null ? rest : ByteBuffer.allocate(0));
+            }
+        }
+
+        // Method to stop reading from a client that exited, letting the goodbye drain before closing.
+        private void exited() {
+            disconnected = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Method to append received bytes to the frame buffer and dispatch every complete frame. Frames are
+        // dispatched in place by narrowing the buffer's limits, so parsing allocates nothing.
+        private void readFrames(ByteBuffer buffer) {
+            if (inbound == null) {
+                inbound = ByteBuffer.allocate(4096);
+            }
+            // Going round at least once, so frames left over from a pause are dispatched even with no new input.
+            do {
+                // Copying as much as fits into the frame buffer.
+                int count = Math.min(buffer.remaining(), inbound.remaining());
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + count);
+                inbound.put(buffer);
+                buffer.limit(limit);
+
+                inbound.flip();
+                while (inbound.remaining() >= 4) {
+                    int start = inbound.position();
+                    int length = inbound.getInt(start);
+                    if (length < 1 || length > MAX_LINE_LENGTH) {
+                        fail();
+                        return;
+                    }
+                    if (inbound.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = start + 4 + length;
+                    int frameLimit = inbound.limit();
+                    inbound.position(start + 4).limit(end);
+                    boolean open = BinaryProtocol.dispatch(handler, inbound.get() & 0xFF, inbound);
+                    inbound.limit(frameLimit).position(end);
+                    if (!open) {
+                        exited();
+                        return;
+                    }
+                    if (outbox.isFull()) {
+                        inbound.compact();
+                        pauseReading(buffer);
+                        return;
+                    }
+                }
+                inbound.compact();
+
+                // Growing the buffer when a partial frame is larger than it.
+                if (inbound.position() >= 4 && 4 + inbound.getInt(0) > inbound.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(4 + inbound.getInt(0), inbound.capacity() * 2));
+                    inbound.flip();
+                    grown.put(inbound);
+                    inbound = grown;
+                }
+            } while (buffer.hasRemaining());
+        }
+
+        // Method to decode the buffered line, dropping a trailing carriage return as readLine does.
+        private String takeLine() {
+            byte[] bytes = partialLine.toByteArray();
+            partialLine.reset();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length, Charset.defaultCharset());
+        }
+
+        // Method to queue a flush on the loop thread unless one is already pending.
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        dropped();
+                    }
+                });
+            }
+        }
+
+        // Method to write queued output until the socket buffer is full. Runs on the loop thread.
+        public void flush() throws IOException {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            ByteBuffer buffer = loop.writeBuffer;
+            while (true) {
+                buffer.clear();
+                if (outbox.drainTo(buffer) == 0) {
+                    break;
+                }
+                buffer.flip();
+                Metrics.outboundBytes.add(channel.write(buffer));
+                Metrics.socketWrites.increment();
+                if (buffer.hasRemaining()) {
+                    // The socket is full; hand the rest back to the outbox, ahead of everything queued, and wait
+                    // for the selector to report the socket writable.
+                    outbox.unwrite(buffer);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    resumeReading();
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            resumeReading();
+            // Closing the channel once a closed outbox has drained.
+            if (outbox.isClosed()) {
+                shutdown();
+            }
+        }
+
+        // Method to drop a connection the peer broke off, parking the client's session if it has one to resume.
+        public void dropped() {
+            if (!disconnected) {
+                disconnected = true;
+                parked = handler.park();
+                if (!parked) {
+                    handler.disconnect();
+                }
+            }
+            shutdown();
+        }
+
+        // Method to drop a broken connection, making sure the client leaves its room first.
+        public void fail() {
+            if (!disconnected) {
+                disconnected = true;
+                handler.disconnect();
+            }
+            shutdown();
+        }
+
+        // Method to close the channel immediately.
+        private void shutdown() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Admission.release();
+            if (idleWatch != null) {
+                idleWatch.stop();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing left to do for a channel that fails to close.
+            }
+            if (!parked) {
+                outbox.close();
+            }
+        }
+    }
+
+    // Policies for a client whose outbound queue is full.
+    private enum OverflowPolicy {
+        // Discard the oldest queued message to make room for the new one.
+        DROP_OLDEST,
+        // Discard the new message.
+        DROP_NEWEST,
+        // Disconnect the slow client.
+        DISCONNECT
+    }
+
+    // Nested class for a client's bounded queue of encoded output, filled from any thread and drained by the
+    // client's own writer (a SocketWriter thread or an event loop). Messages are kept in rings so that queueing
+    // a broadcast allocates nothing, chat messages apart from replies to the client's commands so that the overflow
+    // policy only ever drops chat; the buffers themselves are shared between all recipients and never modified:
+    // the writer copies them into its own write buffer with absolute gets, so draining allocates nothing either.
+    // With FLUSH_TICK_MS set, chat messages do not wake the writer one by one: the outbox waits for the next
+    // FlushTicker tick, or for FLUSH_BYTES to pile up, so each write carries many messages.
+    static class Outbox {
+        // Queued chat messages, which the overflow policy may drop, and queued replies, which are never dropped;
+        // numbered from one sequence, so they are drained in the order they were queued.
+        private final MessageRing chat = new MessageRing();
+        private final MessageRing replies = new MessageRing();
+        private long sequence;
+        // Number of queued messages in both rings, and the total size in bytes of everything queued, carry included.
+        private int size;
+        private long queuedBytes;
+        // Output taken off the ring but not written yet, sent before anything else: the rest of a message larger
+        // than the writer's buffer, or bytes the socket did not take. Only allocated in those cases.
+        private ByteBuffer carry;
+        // Number of messages dropped because the queue was full.
+        private long dropped;
+        // Action disconnecting the client under the DISCONNECT policy.
+        private final Runnable disconnect;
+        // Whether the client has already been disconnected for overflowing.
+        private boolean overflowed;
+        // Signal to the writer that there is something to drain.
+        private volatile Runnable wakeup = () -> { };
+        // Name of the client, for reporting.
+        private volatile String owner = "(unnamed)";
+        // Whether the client reads binary frames rather than text lines.
+        private volatile boolean binary;
+        // Whether the outbox accepts no more messages.
+        private volatile boolean closed;
+        // Outbox of the resumed session that messages arriving here are passed on to, or null.
+        private Outbox forward;
+        // Whether the reader of a blocking connection is waiting for the queue to drain, and whether it has been
+        // released from waiting for good because the connection is going away.
+        private boolean readerWaiting;
+        private boolean readerReleased;
+
+        // Constructor for Outbox, registering it for reporting.
+        public Outbox(Runnable disconnect) {
+            this.disconnect = disconnect;
+            outboxes.add(this);
+        }
+
+        // Method to set the signal used to wake the writer.
+        public void setWakeup(Runnable wakeup) {
+            this.wakeup = wakeup;
+        }
+
+        // Method to queue a chat message, applying the overflow policy if the client is not keeping up.
+        public void offer(ByteBuffer message) {
+            boolean wasEmpty = false;
+            boolean reachedThreshold = false;
+            boolean disconnectNow = false;
+            Outbox target;
+            synchronized (this) {
+                target = forward;
+                if (target == null && (closed || overflowed)) {
+                    return;
+                }
+                if (target != null) {
+                    // Passed on below, outside this outbox's lock.
+                } else if (size >= OUTBOX_CAPACITY) {
+                    dropped++;
+                    if (OUTBOX_POLICY == OverflowPolicy.DROP_NEWEST) {
+                        return;
+                    }
+                    if (OUTBOX_POLICY == OverflowPolicy.DISCONNECT) {
+                        overflowed = true;
+                        disconnectNow = true;
+                    } else if (chat.size() == 0) {
+                        // DROP_OLDEST with only replies queued: the new message is the oldest chat message there is.
+                        return;
+                    } else {
+                        // DROP_OLDEST: the oldest chat message goes, never a reply. The writer only ever takes whole
+                        // messages off the rings, so it is never half written.
+                        queuedBytes -= chat.poll().remaining();
+                        size--;
+                    }
+                }
+                if (target == null && !disconnectNow) {
+                    add(chat, message);
+                    wasEmpty = size == 1;
+                    reachedThreshold = queuedBytes >= FLUSH_BYTES && queuedBytes - message.remaining() < FLUSH_BYTES;
+                }
+            }
+            if (target != null) {
+                target.offer(message);
+            } else if (disconnectNow) {
+                AsyncLogger.log("Disconnecting slow client: " + owner + " (" + OUTBOX_CAPACITY + " messages queued)");
+                disconnect.run();
+            } else if (FLUSH_TICK_MS <= 0 ? wasEmpty : reachedThreshold) {
+                wakeup.run();
+            } else if (wasEmpty) {
+                // Coalescing: the writer is woken by the next tick, at most FLUSH_TICK_MS from now.
+                FlushTicker.schedule(this);
+            }
+        }
+
+        // Method to wake the writer; used by the flush ticker.
+        void wakeWriter() {
+            wakeup.run();
+        }
+
+        // Method to queue a reply to the client's own command; replies are never dropped.
+        public void send(ByteBuffer message) {
+            Outbox target;
+            synchronized (this) {
+                target = forward;
+                if (target == null) {
+                    if (closed) {
+                        return;
+                    }
+                    add(replies, message);
+                }
+            }
+            if (target != null) {
+                target.send(message);
+            } else {
+                wakeup.run();
+            }
+        }
+
+        // Method to move everything queued here to the outbox of a resumed session, in order, and forward
+        // whatever still arrives here to it from then on. The missed messages are queued there as the reply to
+        // the resume, so none of them is dropped.
+        public void transferTo(Outbox target) {
+            synchronized (this) {
+                if (carry != null) {
+                    queuedBytes -= carry.remaining();
+                    target.send(carry);
+                    carry = null;
+                }
+                MessageRing from;
+                while ((from = next()) != null) {
+                    ByteBuffer message = from.poll();
+                    queuedBytes -= message.remaining();
+                    size--;
+                    target.send(message);
+                }
+                forward = target;
+            }
+            outboxes.remove(this);
+        }
+
+        // Method to append a message to one of the rings, numbering it. Called with the lock held.
+        private void add(MessageRing ring, ByteBuffer message) {
+            ring.add(message, sequence++);
+            size++;
+            queuedBytes += message.remaining();
+        }
+
+        // Method to pick the ring holding the oldest queued message, or null when both are empty. Called with the
+        // lock held.
+        private MessageRing next() {
+            if (chat.size() == 0) {
+                return replies.size() == 0 ? null : replies;
+            }
+            if (replies.size() == 0) {
+                return chat;
+            }
+            return chat.peekSequence() < replies.peekSequence() ? chat : replies;
+        }
+
+        // Method for the writer to copy queued output into its write buffer, from the buffer's position up to its
+        // limit, taking it off the queue; returns the number of bytes copied. Shared messages are read with
+        // absolute gets, so they are neither modified nor duplicated; a message that does not fit is continued
+        // from the carry on the next call.
+        public synchronized int drainTo(ByteBuffer buffer) {
+            int start = buffer.position();
+            if (carry != null) {
+                copy(carry, buffer);
+                if (carry.hasRemaining()) {
+                    return buffer.position() - start;
+                }
+                carry = null;
+            }
+            MessageRing from;
+            while (buffer.hasRemaining() && (from = next()) != null) {
+                ByteBuffer message = from.poll();
+                size--;
+                int copied = copy(message, buffer);
+                if (copied < message.remaining()) {
+                    carry = message.duplicate();
+                    carry.position(message.position() + copied);
+                }
+            }
+            if (readerWaiting && size < OUTBOX_CAPACITY) {
+                readerWaiting = false;
+                notifyAll();
+            }
+            return buffer.position() - start;
+        }
+
+        // Method to copy as much of a message as fits into the write buffer, advancing the buffer, and the message
+        // too when it is the carry, which no one else reads; returns the number of bytes copied. Called with the
+        // lock held.
+        private int copy(ByteBuffer message, ByteBuffer buffer) {
+            int length = Math.min(message.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), message, message.position(), length);
+            buffer.position(buffer.position() + length);
+            if (message == carry) {
+                carry.position(carry.position() + length);
+            }
+            queuedBytes -= length;
+            return length;
+        }
+
+        // Method for the writer to hand back the bytes of its write buffer the socket did not take, from the
+        // buffer's position; they are copied and written before anything else queued.
+        public void unwrite(ByteBuffer rest) {
+            Outbox target;
+            synchronized (this) {
+                target = forward;
+                if (target == null) {
+                    ByteBuffer copy = ByteBuffer.allocate(rest.remaining() + (carry != null ? carry.remaining() : 0));
+                    queuedBytes += rest.remaining();
+                    copy.put(rest);
+                    if (carry != null) {
+                        copy.put(carry);
+                    }
+                    carry = copy.flip();
+                }
+            }
+            if (target != null) {
+                target.unwrite(rest);
+            }
+        }
+
+        // Method to check whether the queue is at capacity. Replies to commands are never dropped, so a client
+        // that sends commands without reading the replies is stopped from sending more instead: the blocking
+        // reader waits in awaitCapacity, and an event loop stops reading the connection.
+        public synchronized boolean isFull() {
+            return size >= OUTBOX_CAPACITY;
+        }
+
+        // Method for the reader of a blocking connection to wait while the queue is at capacity.
+        public synchronized void awaitCapacity() throws InterruptedIOException {
+            while (size >= OUTBOX_CAPACITY && !closed && !readerReleased) {
+                readerWaiting = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the client to read");
+                }
+            }
+        }
+
+        // Method to stop the reader waiting for good, once the connection is being torn down.
+        public synchronized void releaseReader() {
+            readerReleased = true;
+            notifyAll();
+        }
+
+        // Method to stop accepting messages; the writer drains what is queued and then closes the connection.
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+            }
+            outboxes.remove(this);
+            wakeup.run();
+        }
+
+        // Method to check whether the outbox is closed.
+        public boolean isClosed() {
+            return closed;
+        }
+
+        // Method to check whether the client was disconnected for overflowing its outbox.
+        public synchronized boolean isOverflowed() {
+            return overflowed;
+        }
+
+        // Getter and setter methods for the client's wire format.
+        public void setBinary(boolean binary) {
+            this.binary = binary;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        // Getter and setter methods for reporting.
+        public void setOwner(String owner) {
+            this.owner = owner;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public synchronized int getDepth() {
+            return size;
+        }
+
+        public synchronized long getDropped() {
+            return dropped;
+        }
+    }
+
+    // Nested class for a growable ring of queued messages, each with its sequence number in the outbox; not
+    // thread-safe, it is only used under its outbox's lock.
+    private static class MessageRing {
+        // Queued messages and their sequence numbers, from the oldest at head.
+        private ByteBuffer[] messages = new ByteBuffer[16];
+        private long[] sequences = new long[16];
+        private int head;
+        // Number of queued messages.
+        private int size;
+
+        // Method to append a message, growing the ring if needed.
+        void add(ByteBuffer message, long sequence) {
+            if (size == messages.length) {
+                ByteBuffer[] grownMessages = new ByteBuffer[messages.length * 2];
+                long[] grownSequences = new long[messages.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grownMessages[i] = messages[(head + i) % messages.length];
+                    grownSequences[i] = sequences[(head + i) % messages.length];
+                }
+                messages = grownMessages;
+                sequences = grownSequences;
+                head = 0;
+            }
+            int tail = (head + size) % messages.length;
+            messages[tail] = message;
+            sequences[tail] = sequence;
+            size++;
+        }
+
+        // Method to take the oldest message off the ring.
+        ByteBuffer poll() {
+            ByteBuffer message = messages[head];
+            messages[head] = null;
+            head = (head + 1) % messages.length;
+            size--;
+            return message;
+        }
+
+        // Method to get the sequence number of the oldest message.
+        long peekSequence() {
+            return sequences[head];
+        }
+
+        // Method to get the number of queued messages.
+        int size() {
+            return size;
+        }
+    }
+
+    // Nested class for the shared clock of coalesced output: outboxes that queued chat messages without waking
+    // their writer register here, and a single daemon thread wakes all of them every FLUSH_TICK_MS, so a
+    // message waits at most one tick before it is written.
+    private static class FlushTicker {
+        // Outboxes with output waiting for the next tick.
+        private static final Queue<Outbox> pending = new ConcurrentLinkedQueue<>();
+
+        static {
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "flush-ticker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(FlushTicker::tick, FLUSH_TICK_MS, FLUSH_TICK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Method to have an outbox's writer woken on the next tick.
+        public static void schedule(Outbox outbox) {
+            pending.add(outbox);
+        }
+
+        // Method to wake the writer of every outbox registered since the last tick.
+        private static void tick() {
+            Outbox outbox;
+            while ((outbox = pending.poll()) != null) {
+                outbox.wakeWriter();
+            }
+        }
+    }
+
+    // Nested class for a hashed timing wheel: timeouts are hashed by deadline into a ring of WHEEL_SIZE buckets of
+    // one tick each, with a count of full turns still to wait, so scheduling and cancelling are O(1) however many
+    // timeouts are pending. One daemon thread advances the wheel each tick and runs the expired tasks, which must
+    // be short: they hand real work to the thread owning the resource. New and cancelled timeouts reach that
+    // thread through lock-free queues, so the buckets themselves are only ever touched by it.
+    static class TimingWheel implements Runnable {
+        // Number of buckets; a power of two so a tick maps to a bucket by masking.
+        private static final int WHEEL_SIZE = 512;
+
+        // Length of one tick in nanoseconds.
+        private final long tickNanos;
+        // Buckets of the wheel: doubly linked lists of timeouts.
+        private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+        // Timeouts scheduled or cancelled since the last tick.
+        private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+        private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+        // Number of timeouts scheduled and not yet expired or cancelled.
+        private final LongAdder pending = new LongAdder();
+        // Time the wheel started, the origin of every deadline.
+        private final long start = System.nanoTime();
+        // Number of ticks processed so far; only used by the wheel thread.
+        private long tick;
+
+        // Constructor for TimingWheel, starting its thread.
+        public TimingWheel(String name, long tickMillis) {
+            this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Method to run a task once the delay has passed, rounded up to the next tick.
+        public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+            Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(delay));
+            pending.increment();
+            scheduled.add(timeout);
+            return timeout;
+        }
+
+        // Method to get the number of pending timeouts.
+        public long getPending() {
+            return pending.sum();
+        }
+
+        // Run method for the wheel's thread.
+        public void run() {
+            while (true) {
+                // Sleeping until the end of the current tick.
+                long deadline = (tick + 1) * tickNanos;
+                long sleep;
+                while ((sleep = deadline - (System.nanoTime() - start)) > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+                unlinkCancelled();
+                placeScheduled();
+                expire(deadline);
+                tick++;
+            }
+        }
+
+        // Method to put newly scheduled timeouts into their buckets.
+        private void placeScheduled() {
+            Timeout timeout;
+            while ((timeout = scheduled.poll()) != null) {
+                if (timeout.state.get() != Timeout.WAITING) {
+                    continue; // Cancelled before it was placed.
+                }
+                // A deadline already past goes into the current bucket and expires this tick.
+                long due = Math.max(timeout.deadline / tickNanos, tick);
+                timeout.rounds = (due - tick) / WHEEL_SIZE;
+                int index = (int) (due & (WHEEL_SIZE - 1));
+                timeout.next = buckets[index];
+                if (timeout.next != null) {
+                    timeout.next.previous = timeout;
+                }
+                buckets[index] = timeout;
+                timeout.bucket = index;
+            }
+        }
+
+        // Method to take cancelled timeouts out of their buckets.
+        private void unlinkCancelled() {
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket >= 0) {
+                    unlink(timeout);
+                }
+            }
+        }
+
+        // Method to run the timeouts of the current bucket that are due, and count down the others' rounds.
+        private void expire(long deadline) {
+            Timeout timeout = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else if (timeout.deadline <= deadline) {
+                    unlink(timeout);
+                    timeout.expire();
+                }
+                timeout = next;
+            }
+        }
+
+        // Method to remove a timeout from its bucket.
+        private void unlink(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                buckets[timeout.bucket] = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = -1;
+        }
+
+        // Nested class for one scheduled task.
+        class Timeout {
+            private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+            private final Runnable task;
+            // Deadline in nanoseconds since the wheel started.
+            private final long deadline;
+            // Whether the timeout is still waiting, cancelled or expired.
+            private final AtomicInteger state = new AtomicInteger(WAITING);
+            // Bucket links, only used by the wheel thread; bucket is -1 while not in one.
+            private Timeout previous;
+            private Timeout next;
+            private int bucket = -1;
+            private long rounds;
+
+            // Constructor for Timeout.
+            Timeout(Runnable task, long deadline) {
+                this.task = task;
+                this.deadline = deadline;
+            }
+
+            // Method to cancel the timeout; returns false if it already ran or was cancelled.
+            public boolean cancel() {
+                if (!state.compareAndSet(WAITING, CANCELLED)) {
+                    return false;
+                }
+                pending.decrement();
+                cancelled.add(this);
+                return true;
+            }
+
+            // Method to run the task unless the timeout was cancelled meanwhile.
+            private void expire() {
+                if (!state.compareAndSet(WAITING, EXPIRED)) {
+                    return;
+                }
+                pending.decrement();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Nested class for admission control: a cap on open client connections, checked on the accepting thread before
+    // any handler or thread is set up, so a server at its limit turns new clients away at once instead of slowing
+    // down everyone it already serves.
+    private static class Admission {
+        // Most connections open at once, 0 for no limit, set for the server's mode before it accepts anyone.
+        private static volatile int limit;
+        // Reply to a client turned away.
+        private static volatile ByteBuffer busy;
+        // Number of client connections open.
+        private static final AtomicInteger open = new AtomicInteger();
+
+        // Method to set the most connections open at once.
+        static void setLimit(int max) {
+            busy = encodeLine("SERVER_BUSY The server is at its limit of " + max
+                    + " connections; please try again later.");
+            limit = max;
+        }
+
+        // Method to count in a new connection; fails when the server is full.
+        static boolean tryAdmit() {
+            int max = limit;
+            while (true) {
+                int count = open.get();
+                if (max > 0 && count >= max) {
+                    return false;
+                }
+                if (open.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        // Method to count out a closed connection.
+        static void release() {
+            open.decrementAndGet();
+        }
+
+        // Method to tell a new client the server is full and close its connection.
+        static void reject(SocketChannel channel) {
+            Metrics.rejectedConnections.increment();
+            AsyncLogger.log("Rejected connection from " + channel.socket().getInetAddress().getHostAddress()
+                    + ": " + limit + " connections open");
+            try (channel) {
+                // A fresh socket's send buffer takes the short reply without blocking.
+                channel.write(busy.duplicate());
+            } catch (IOException ignored) {
+                // The client is gone already.
+            }
+        }
+    }
+
+    // Nested class for a lock-free token bucket, kept as the time at which the bucket will be full again (the
+    // generic cell rate algorithm): taking a token moves that time on by one interval, refused when it would lie
+    // more than a burst of intervals ahead. One compare-and-set per message, and nothing to refill.
+    static class TokenBucket {
+        // Nanoseconds per token, and the most tokens that may be taken at once.
+        private final long interval;
+        private final long burst;
+        // Time, in System.nanoTime(), at which every token taken so far has been paid back.
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+        // Constructor for TokenBucket; a rate of 0 or less never refuses.
+        public TokenBucket(int perSecond, int burst) {
+            this.interval = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+            this.burst = Math.max(1, burst);
+        }
+
+        // Method to take a token; returns false when the bucket is empty.
+        public boolean tryAcquire() {
+            if (interval == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long current = full.get();
+                long next = Math.max(current, now) + interval;
+                if (next - now > burst * interval) {
+                    return false;
+                }
+                if (full.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    // Nested class watching a connection for inactivity. Reads only record the time; a single wheel timeout fires
+    // after IDLE_TIMEOUT_MS and re-arms itself for the remainder until the connection has really been idle that
+    // long, so activity never touches the wheel.
+    private static class IdleWatch implements Runnable {
+        // Action closing the idle connection; runs on the wheel thread, so it only hands the work over.
+        private final Runnable onIdle;
+        // Time of the last read from the connection.
+        private volatile long lastActivity = System.nanoTime();
+        // Timeout currently armed, and whether the watch has been stopped.
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean stopped;
+
+        // Constructor for IdleWatch, arming it unless idle timeouts are disabled.
+        public IdleWatch(Runnable onIdle) {
+            this.onIdle = onIdle;
+            if (IDLE_TIMEOUT_MS > 0) {
+                timeout = timers.schedule(this, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Method to record activity on the connection.
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        // Method to stop watching a closed connection.
+        public void stop() {
+            stopped = true;
+            TimingWheel.Timeout armed = timeout;
+            if (armed != null) {
+                armed.cancel();
+            }
+        }
+
+        // Run method for the timeout: close the connection, or wait out the rest of the period.
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            long idle = System.nanoTime() - lastActivity;
+            long limit = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+            if (idle >= limit) {
+                onIdle.run();
+            } else {
+                timeout = timers.schedule(this, limit - idle, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    // Nested class for the writer thread of a blocking connection, draining its outbox to the socket's channel
+    // through a write buffer of its own until the outbox or the socket is closed.
+    private static class SocketWriter implements Runnable {
+        // Socket to the client.
+        private final Socket socket;
+        // Outbox being drained.
+        private final Outbox outbox;
+
+        // Constructor for SocketWriter.
+        public SocketWriter(Socket socket, Outbox outbox) {
+            this.socket = socket;
+            this.outbox = outbox;
+        }
+
+        // Run method for the writer's thread: write messages as they arrive, close the socket once drained.
+        public void run() {
+            SocketChannel channel = socket.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            try {
+                while (true) {
+                    // Stopping, before taking anything more, once the reader closed the socket to park the session:
+                    // what is still queued stays in the outbox for the resumed connection.
+                    if (socket.isClosed()) {
+                        break;
+                    }
+                    buffer.clear();
+                    if (outbox.drainTo(buffer) == 0) {
+                        // Stopping once the outbox is closed.
+                        if (outbox.isClosed()) {
+                            break;
+                        }
+                        // Waiting for the outbox to signal more output (or its closing).
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    // The channel is blocking, but a write may still return early; write until done.
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        Metrics.outboundBytes.add(channel.write(buffer));
+                        Metrics.socketWrites.increment();
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away; the reading side notices the closed socket and disconnects the client or
+                // parks its session, so the outbox is left open. Whatever was taken but not written goes back to
+                // the head of the outbox, and on to a resumed session with the rest.
+                if (buffer.hasRemaining()) {
+                    outbox.unwrite(buffer);
+                }
+            } finally {
+                outbox.releaseReader();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do for a socket that fails to close.
+                }
+            }
+        }
+    }
+
+    // Nested class adapting a PrintWriter to an Outbox: text is encoded and queued on each flush.
+    private static class OutboxWriter extends Writer {
+        // Outbox receiving the encoded text.
+        private final Outbox outbox;
+        // Text written since the last flush.
+        private final StringBuilder pending = new StringBuilder();
+
+        // Constructor for OutboxWriter.
+        public OutboxWriter(Outbox outbox) {
+            this.outbox = outbox;
+        }
+
+        // Method to buffer written characters; PrintWriter serializes callers on this writer.
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        // Method to encode the buffered text and queue it on the outbox, as a TEXT frame for binary clients.
+        public void flush() {
+            if (pending.length() > 0) {
+                if (outbox.isBinary()) {
+                    // Frames carry their own length, so the line separator println added is dropped.
+                    int end = pending.length();
+                    while (end > 0 && (pending.charAt(end - 1) == '\n' || pending.charAt(end - 1) == '\r')) {
+                        end--;
+                    }
+                    outbox.send(BinaryProtocol.text(pending.substring(0, end)));
+                } else {
+                    outbox.send(ByteBuffer.wrap(pending.toString().getBytes(Charset.defaultCharset())));
+                }
+                pending.setLength(0);
+            }
+        }
+
+        // Method to flush and then close the outbox, which closes the connection once its output has drained.
+        public void close() {
+            flush();
+            outbox.close();
+        }
+    }
+
+    // Nested class for one message in a room's history.
+    private static class HistoryEntry {
+        // Time the message was sent, in epoch milliseconds.
+        private final long millis;
+        // ID and name of the sender.
+        private final int senderId;
+        private final String sender;
+        // Text of the message.
+        private final String text;
+
+        // Constructor for HistoryEntry.
+        public HistoryEntry(long millis, int senderId, String sender, String text) {
+            this.millis = millis;
+            this.senderId = senderId;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        // Method to format the entry as the text protocol line a live broadcast would have used.
+        public String toLine() {
+            return "\n" + "[" + MessageClock.format(millis) + "] " + (sender + ": " + text).trim();
+        }
+    }
+
+    // Nested class for a room's message history: a ring of recent messages in memory, backed by an append-only
+    // log of memory-mapped segment files under LOG_DIR/room-<name>/. Appending only copies the record into the
+    // mapped segment; a shared flusher forces dirty segments to disk every LOG_FLUSH_MS, so messages are
+    // group-committed rather than synced one by one. Segments rotate when full and only the newest
+    // LOG_RETAIN_SEGMENTS are kept. Each record is [int length][long millis][int senderId][string sender][text],
+    // and a zero length marks the end of the written part of a segment.
+    // Nothing is created or mapped until the room's first message, so joining rooms costs no disk, and a
+    // segment's mapping is released as soon as the log rotates away from it or closes: the flusher forces and
+    // unmaps it, so neither the sync nor the file deletions of a rotation run inside an append.
+    private static class RoomLog {
+        // Logs with a mapped segment open, visited by the flusher.
+        private static final Set<RoomLog> openLogs = ConcurrentHashMap.newKeySet();
+        // Single daemon thread forcing dirty segments to disk, and retiring segments the logs no longer append to.
+        private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "room-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Unsafe.invokeCleaner, looked up reflectively from jdk.unsupported, or null where it is unavailable and
+        // mappings are released by the garbage collector.
+        private static final Object UNSAFE;
+        private static final java.lang.reflect.Method INVOKE_CLEANER;
+
+        static {
+            flusher.scheduleWithFixedDelay(RoomLog::flushAll, LOG_FLUSH_MS, LOG_FLUSH_MS, TimeUnit.MILLISECONDS);
+            Object unsafe = null;
+            java.lang.reflect.Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        // Name of the room.
+        private final String roomName;
+        // Ring of the most recent messages, oldest at ringHead.
+        private HistoryEntry[] ring;
+        private int ringHead;
+        private int ringSize;
+        // Directory of the room's segments, or null if history is memory-only.
+        private Path directory;
+        // Index of the segment being appended to, and its mapping, or null until the first append.
+        private int segmentIndex;
+        private volatile MappedByteBuffer segment;
+        // Whether the segment has been written since it was last forced.
+        private volatile boolean dirty;
+        // Whether the log has been opened, whether mapping a segment failed, and whether it has been closed for good.
+        private boolean opened;
+        private boolean memoryOnly;
+        private boolean closed;
+
+        // Constructor for RoomLog; no files are touched until the history is first used.
+        public RoomLog(String roomName) {
+            this.roomName = roomName;
+        }
+
+        // Method to record a message in the ring and the mapped log.
+        public synchronized void append(HistoryEntry entry) {
+            if (closed) {
+                return;
+            }
+            open();
+            addToRing(entry);
+            if (segment == null && !mapSegment()) {
+                return;
+            }
+            byte[] record = encode(entry);
+            if (4 + record.length > LOG_SEGMENT_BYTES) {
+                return; // Too large for any segment; it stays in the ring only.
+            }
+            try {
+                if (segment.remaining() < 4 + record.length) {
+                    rotate();
+                }
+                // Writing the body before its length, so a reader scanning the segment never sees half a record.
+                int at = segment.position();
+                segment.position(at + 4);
+                segment.put(record);
+                segment.putInt(at, record.length);
+                dirty = true;
+            } catch (IOException e) {
+                System.out.println("History for room " + roomName + " is now memory-only: " + e.getMessage());
+                memoryOnly = true;
+                MappedByteBuffer failed = segment;
+                segment = null;
+                openLogs.remove(this);
+                retire(failed);
+            }
+        }
+
+        // Method to get up to n recent messages, oldest first, from the in-memory ring only.
+        public synchronized List<HistoryEntry> recent(int n) {
+            if (closed) {
+                return Collections.emptyList();
+            }
+            open();
+            int count = Math.min(n, ringSize);
+            List<HistoryEntry> entries = new ArrayList<>(count);
+            for (int i = ringSize - count; i < ringSize; i++) {
+                entries.add(ring[(ringHead + i) % ring.length]);
+            }
+            return entries;
+        }
+
+        // Method to get up to n recent messages, oldest first, reading the mapped segments beyond the ring.
+        public List<HistoryEntry> history(int n) {
+            int lastSegment;
+            int end;
+            synchronized (this) {
+                if (closed || n <= ringSize || directory == null) {
+                    return recent(n);
+                }
+                lastSegment = segment != null ? segmentIndex : Integer.MAX_VALUE;
+                end = segment != null ? segment.position() : -1;
+            }
+            // Reading the segments outside the lock, so appends, and with them the room's broadcasts, are not
+            // held up; the current segment is only read as far as it had been written when the lock was held.
+            return readLast(n, lastSegment, end);
+        }
+
+        // Method to stop logging and have the current segment forced and its mapping released; called when the room
+        // is removed.
+        public void close() {
+            MappedByteBuffer last;
+            synchronized (this) {
+                closed = true;
+                last = segment;
+                segment = null;
+                openLogs.remove(this);
+            }
+            retire(last);
+        }
+
+        // Method to open the log on first use: refill the ring from the room's existing segments, if any, without
+        // creating or mapping anything for writing.
+        private void open() {
+            if (opened) {
+                return;
+            }
+            opened = true;
+            ring = new HistoryEntry[Math.max(1, HISTORY_SIZE)];
+            if (LOG_DIR.isEmpty()) {
+                return;
+            }
+            directory = Paths.get(LOG_DIR, "room-" + URLEncoder.encode(roomName, StandardCharsets.UTF_8));
+            if (Files.isDirectory(directory)) {
+                for (HistoryEntry entry : readLast(ring.length, Integer.MAX_VALUE, -1)) {
+                    addToRing(entry);
+                }
+            }
+        }
+
+        // Method to map the newest segment for appending, creating the room's directory on its first message.
+        // Returns false if the history has to stay memory-only.
+        private boolean mapSegment() {
+            if (directory == null || memoryOnly) {
+                return false;
+            }
+            try {
+                Files.createDirectories(directory);
+                List<Integer> segments = listSegments();
+                segmentIndex = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+                MappedByteBuffer mapped = map(segmentIndex, FileChannel.MapMode.READ_WRITE);
+                // Finding the end of the records already written to the segment.
+                mapped.position(scan(mapped, null));
+                segment = mapped;
+                openLogs.add(this);
+                return true;
+            } catch (IOException e) {
+                System.out.println("History for room " + roomName + " is memory-only: " + e.getMessage());
+                memoryOnly = true;
+                return false;
+            }
+        }
+
+        // Method to add a message to the ring, overwriting the oldest once full.
+        private void addToRing(HistoryEntry entry) {
+            if (ringSize < ring.length) {
+                ring[(ringHead + ringSize++) % ring.length] = entry;
+            } else {
+                ring[ringHead] = entry;
+                ringHead = (ringHead + 1) % ring.length;
+            }
+        }
+
+        // Method to start a new segment. The full one is forced and released, and the oldest beyond the retention
+        // limit deleted, on the flusher thread, so the append rotating the log only pays for mapping the new one.
+        private void rotate() throws IOException {
+            MappedByteBuffer full = segment;
+            dirty = false;
+            segment = map(++segmentIndex, FileChannel.MapMode.READ_WRITE);
+            retire(full);
+            flusher.execute(this::deleteOldSegments);
+        }
+
+        // Method to delete the oldest segments beyond the retention limit; runs on the flusher thread.
+        private void deleteOldSegments() {
+            try {
+                List<Integer> segments = listSegments();
+                for (int i = 0; i < segments.size() - LOG_RETAIN_SEGMENTS; i++) {
+                    Files.deleteIfExists(segmentPath(segments.get(i)));
+                }
+            } catch (IOException e) {
+                System.out.println("Could not delete old history of room " + roomName + ": " + e.getMessage());
+            }
+        }
+
+        // Method to read the last n records, walking the segments from newest to oldest.
+        // Segments after lastSegment are skipped and lastSegment is read up to end, unless end is negative.
+        private List<HistoryEntry> readLast(int n, int lastSegment, int end) {
+            LinkedList<HistoryEntry> entries = new LinkedList<>();
+            try {
+                List<Integer> segments = listSegments();
+                for (int i = segments.size() - 1; i >= 0 && entries.size() < n; i--) {
+                    int index = segments.get(i);
+                    if (index > lastSegment) {
+                        continue;
+                    }
+                    // Reading through a private mapping, released as soon as its records have been decoded.
+                    MappedByteBuffer mapped;
+                    try {
+                        mapped = map(index, FileChannel.MapMode.READ_ONLY);
+                    } catch (NoSuchFileException e) {
+                        break; // Deleted by a rotation meanwhile, like every older segment.
+                    }
+                    if (index == lastSegment && end >= 0) {
+                        mapped.limit(Math.min(end, mapped.limit()));
+                    }
+                    List<HistoryEntry> segmentEntries = new ArrayList<>();
+                    try {
+                        scan(mapped, segmentEntries);
+                    } finally {
+                        unmap(mapped);
+                    }
+                    for (int j = segmentEntries.size() - 1; j >= 0 && entries.size() < n; j--) {
+                        entries.addFirst(segmentEntries.get(j));
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read history of room " + roomName + ": " + e.getMessage());
+            }
+            return entries;
+        }
+
+        // Method to walk the records of a segment from its start, collecting them if entries is not null;
+        // returns the offset just past the last record.
+        private static int scan(ByteBuffer mapped, List<HistoryEntry> entries) {
+            int position = 0;
+            while (position + 4 <= mapped.limit()) {
+                int length = mapped.getInt(position);
+                if (length <= 0 || position + 4 + length > mapped.limit()) {
+                    break;
+                }
+                if (entries != null) {
+                    entries.add(decode(mapped, position + 4, length));
+                }
+                position += 4 + length;
+            }
+            return position;
+        }
+
+        // Method to encode a record body.
+        private static byte[] encode(HistoryEntry entry) {
+            byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+            byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(8 + 4 + 2 + sender.length + text.length);
+            record.putLong(entry.millis).putInt(entry.senderId).putShort((short) sender.length).put(sender).put(text);
+            return record.array();
+        }
+
+        // Method to decode the record body at the given offset.
+        private static HistoryEntry decode(ByteBuffer mapped, int offset, int length) {
+            long millis = mapped.getLong(offset);
+            int senderId = mapped.getInt(offset + 8);
+            int senderLength = mapped.getShort(offset + 12) & 0xFFFF;
+            byte[] sender = new byte[senderLength];
+            byte[] text = new byte[length - 14 - senderLength];
+            mapped.get(offset + 14, sender);
+            mapped.get(offset + 14 + senderLength, text);
+            return new HistoryEntry(millis, senderId, new String(sender, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+        }
+
+        // Method to map a whole segment file, creating it when mapped for writing.
+        private MappedByteBuffer map(int index, FileChannel.MapMode mode) throws IOException {
+            Path path = segmentPath(index);
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return channel.map(mode, 0, channel.size());
+                }
+            }
+            // The mapping stays valid after the channel is closed, so no descriptor is held per room.
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(mode, 0, LOG_SEGMENT_BYTES);
+            }
+        }
+
+        // Method to list the indexes of the room's segments in ascending order.
+        private List<Integer> listSegments() throws IOException {
+            List<Integer> segments = new ArrayList<>();
+            if (!Files.isDirectory(directory)) {
+                return segments; // Nothing logged for the room yet.
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        segments.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+                    } catch (NumberFormatException ignored) {
+                        // Not a segment file.
+                    }
+                }
+            }
+            Collections.sort(segments);
+            return segments;
+        }
+
+        // Method to get the path of a segment file.
+        private Path segmentPath(int index) {
+            return directory.resolve(String.format("%010d.log", index));
+        }
+
+        // Method to force the dirty segments of every open log to disk; runs on the flusher thread.
+        private static void flushAll() {
+            for (RoomLog log : openLogs) {
+                synchronized (log) {
+                    if (!log.dirty) {
+                        continue;
+                    }
+                    log.dirty = false;
+                }
+                // Forcing outside the log's lock so appends to the room are not held up by the sync. Mappings are only
+                // released on this thread, so a segment retired meanwhile is still mapped.
+                MappedByteBuffer current = log.segment;
+                if (current != null) {
+                    current.force();
+                }
+            }
+        }
+
+        // Method to hand a segment the log no longer appends to over to the flusher thread, which forces it and
+        // releases its mapping; the caller may hold the log's lock, or run on an event loop.
+        private void retire(MappedByteBuffer mapped) {
+            if (mapped != null) {
+                flusher.execute(() -> release(mapped));
+            }
+        }
+
+        // Method to force a retired segment and release its mapping; runs on the flusher thread.
+        private static void release(MappedByteBuffer mapped) {
+            mapped.force();
+            unmap(mapped);
+        }
+
+        // Method to release a mapping now rather than whenever the buffer is garbage collected, so closed rooms
+        // and rotated segments do not count against the process's map limit. The buffer must not be used again.
+        private static void unmap(MappedByteBuffer mapped) {
+            if (UNSAFE == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, mapped);
+            } catch (ReflectiveOperationException e) {
+                // Left to the garbage collector.
+            }
+        }
+    }
+
+    // Interface for the handler of one binary frame type. Returns false once the client has exited.
+    private interface BinaryCommand {
+        boolean run(ClientHandler handler, ByteBuffer body);
+    }
+
+    // Nested class for the negotiated binary protocol. A client opts in by sending "/binary" instead of its
+    // name and waiting for "BINARY OK"; from then on both sides exchange frames of [int length][byte opcode]
+    // [body], where length counts the opcode and body. Strings are UTF-8 prefixed by an unsigned short length.
+    private static class BinaryProtocol {
+        // Client-to-server opcodes.
+        public static final int HELLO = 0x01;    // [string name]
+        public static final int JOIN = 0x02;     // [string room]
+        public static final int LEAVE = 0x03;    // []
+        public static final int LIST = 0x04;     // []
+        public static final int EXIT = 0x05;     // []
+        public static final int MESSAGE = 0x06;  // [int roomId][string text]
+        public static final int COMMAND = 0x07;  // [string command], any other slash command
+        // Server-to-client opcodes.
+        public static final int TEXT = 0x81;          // [string text]
+        public static final int WELCOME = 0x82;       // [int clientId][string text]
+        public static final int JOINED = 0x83;        // [int roomId][string room]
+        public static final int LEFT = 0x84;          // [int roomId]
+        public static final int ROOM_MESSAGE = 0x85;  // [int roomId][int senderId][long millis][string sender][string text]
+
+        // Handlers for client frames, indexed by opcode.
+        private static final BinaryCommand[] COMMANDS = new BinaryCommand[256];
+
+        static {
+            COMMANDS[HELLO] = (handler, body) -> {
+                handler.handleName(readString(body));
+                return true;
+            };
+            COMMANDS[JOIN] = (handler, body) -> {
+                handler.joinChatRoom(readString(body));
+                return true;
+            };
+            COMMANDS[LEAVE] = (handler, body) -> {
+                handler.leaveChatRoom();
+                return true;
+            };
+            COMMANDS[LIST] = (handler, body) -> {
+                handler.listChatRooms();
+                return true;
+            };
+            COMMANDS[EXIT] = (handler, body) -> handler.exit();
+            COMMANDS[MESSAGE] = (handler, body) -> {
+                int roomId = body.getInt();
+                handler.sendBinaryMessage(roomId, readString(body));
+                return true;
+            };
+            COMMANDS[COMMAND] = (handler, body) -> {
+                String command = readString(body);
+                // Only slash commands go through here; chat text must be sent as MESSAGE.
+                return !command.startsWith("/") || handler.handleInput(command);
+            };
+        }
+
+        // Method to run the handler for a frame whose opcode has been read from body.
+        public static boolean dispatch(ClientHandler handler, int opcode, ByteBuffer body) {
+            BinaryCommand command = COMMANDS[opcode];
+            if (command == null || handler.clientName == null && opcode != HELLO) {
+                handler.out.println("Unknown or unexpected frame: 0x" + Integer.toHexString(opcode));
+                return true;
+            }
+            try {
+                return command.run(handler, body);
+            } catch (BufferUnderflowException e) {
+                handler.out.println("Malformed frame: 0x" + Integer.toHexString(opcode));
+                return true;
+            }
+        }
+
+        // Method to read a length-prefixed UTF-8 string from a heap buffer.
+        private static String readString(ByteBuffer body) {
+            int length = body.getShort() & 0xFFFF;
+            if (length > body.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+            body.position(body.position() + length);
+            return value;
+        }
+
+        // Methods to encode server frames.
+        public static ByteBuffer text(String text) {
+            byte[] bytes = utf8(text);
+            ByteBuffer frame = frame(TEXT, 2 + bytes.length);
+            putString(frame, bytes);
+            return frame.flip();
+        }
+
+        public static ByteBuffer welcome(int clientId, String text) {
+            byte[] bytes = utf8(text);
+            ByteBuffer frame = frame(WELCOME, 4 + 2 + bytes.length);
+            frame.putInt(clientId);
+            putString(frame, bytes);
+            return frame.flip();
+        }
+
+        public static ByteBuffer joined(int roomId, String roomName) {
+            byte[] bytes = utf8(roomName);
+            ByteBuffer frame = frame(JOINED, 4 + 2 + bytes.length);
+            frame.putInt(roomId);
+            putString(frame, bytes);
+            return frame.flip();
+        }
+
+        public static ByteBuffer left(int roomId) {
+            return frame(LEFT, 4).putInt(roomId).flip();
+        }
+
+        // Method to encode a room message: once into an immutable direct buffer shared by every binary recipient,
+        // or on the heap for a single recipient, such as a replayed history entry.
+        public static ByteBuffer roomMessage(int roomId, int senderId, long millis, String sender, String text, boolean shared) {
+            byte[] senderBytes = utf8(sender);
+            byte[] textBytes = utf8(text);
+            int bodyLength = 4 + 4 + 8 + 2 + senderBytes.length + 2 + textBytes.length;
+            ByteBuffer frame = shared ? ByteBuffer.allocateDirect(5 + bodyLength) : ByteBuffer.allocate(5 + bodyLength);
+            frame.putInt(1 + bodyLength).put((byte) ROOM_MESSAGE);
+            frame.putInt(roomId).putInt(senderId).putLong(millis);
+            putString(frame, senderBytes);
+            putString(frame, textBytes);
+            return frame.flip().asReadOnlyBuffer();
+        }
+
+        // Method to allocate a frame and write its header.
+        private static ByteBuffer frame(int opcode, int bodyLength) {
+            return ByteBuffer.allocate(5 + bodyLength).putInt(1 + bodyLength).put((byte) opcode);
+        }
+
+        // Method to encode a string as UTF-8, truncated to what a short length prefix can describe.
+        private static byte[] utf8(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return bytes.length <= 0xFFFF ? bytes : Arrays.copyOf(bytes, 0xFFFF);
+        }
+
+        // Method to write a length-prefixed string.
+        private static void putString(ByteBuffer frame, byte[] bytes) {
+            frame.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    // Nested class for running several servers as one cluster. Each room is owned by one node, picked by
+    // consistent hashing of the room name over the live nodes. A node with members in a room it does not own
+    // subscribes to the owner and sends its members' messages there; the owner records each message, delivers
+    // it to its own members and relays it to every subscribed node, so all nodes see one order per room. Nodes
+    // talk over one link per pair, framed like the binary client protocol. When a node joins or leaves, every
+    // node rebuilds the ring and re-subscribes its rooms to their new owners.
+    //
+    // Each node is started with -Dchat.cluster.self=host:port (its link address) and
+    // -Dchat.cluster.peers=host:port,... (the others), e.g. several processes on 127.0.0.1 with distinct ports.
+    private static class Cluster {
+        // Link opcodes.
+        public static final int NODE_HELLO = 0x41;   // [string nodeId]
+        public static final int SUBSCRIBE = 0x42;    // [string room]
+        public static final int UNSUBSCRIBE = 0x43;  // [string room]
+        public static final int PUBLISH = 0x44;      // [string room][long millis][int senderId][string sender][string text]
+        public static final int DELIVER = 0x45;      // same body as PUBLISH
+        // Points per node on the hash ring.
+        private static final int VIRTUAL_NODES = 128;
+
+        // Link address of this node, which is also its ID.
+        private final String selfId;
+        // Every node this node knows of: the configured peers plus any that connected to it.
+        private final Set<String> knownNodes = ConcurrentHashMap.newKeySet();
+        // Live links by node ID.
+        private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+        // Hash ring of the live nodes; replaced whole whenever membership changes.
+        private volatile TreeMap<Long, String> ring;
+
+        // Constructor for Cluster.
+        public Cluster(String selfId, String peers) {
+            this.selfId = selfId;
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty() && !peer.trim().equals(selfId)) {
+                    knownNodes.add(peer.trim());
+                }
+            }
+            rebuildRing();
+        }
+
+        // Method to listen for other nodes and keep dialing the ones without a link.
+        public void start() throws IOException {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.bind(address(selfId), 50);
+            System.out.println("Cluster node " + selfId + ", peers: " + knownNodes);
+
+            Thread acceptor = new Thread(() -> {
+                while (listener.isOpen()) {
+                    try {
+                        Socket socket = listener.accept().socket();
+                        new Thread(() -> accept(socket), "cluster-link").start();
+                    } catch (IOException e) {
+                        System.out.println("Cluster accept exception: " + e.getMessage());
+                    }
+                }
+            }, "cluster-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            ScheduledExecutorService dialer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "cluster-dialer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dialer.scheduleWithFixedDelay(this::dialMissing, 0, 1, TimeUnit.SECONDS);
+        }
+
+        // Method to get the node owning a room.
+        public String ownerOf(String roomName) {
+            TreeMap<Long, String> current = ring;
+            Map.Entry<Long, String> entry = current.ceilingEntry(hash(roomName));
+            return (entry != null ? entry : current.firstEntry()).getValue();
+        }
+
+        // Method called after a local client joins a room: subscribe to the owner if it is another node.
+        public void roomJoined(ChatRoomHandler room) {
+            String owner = room.ownerNode;
+            if (!selfId.equals(owner) && room.subscribed.compareAndSet(false, true)) {
+                send(owner, roomFrame(SUBSCRIBE, room.getRoomName()));
+            }
+        }
+
+        // Method called after a room is removed here: drop the subscription held with its owner.
+        public void roomRemoved(ChatRoomHandler room) {
+            if (room.subscribed.compareAndSet(true, false)) {
+                send(room.ownerNode, roomFrame(UNSUBSCRIBE, room.getRoomName()));
+            }
+        }
+
+        // Method to publish a local client's message: through the owner, or directly if this node owns the
+        // room or the owner cannot be reached.
+        public void publish(ChatRoomHandler room, HistoryEntry entry) {
+            String owner = room.ownerNode;
+            ClusterLink link = owner == null ? null : links.get(owner);
+            if (selfId.equals(owner) || link == null) {
+                room.publish(entry);
+            } else {
+                link.send(entryFrame(PUBLISH, room.getRoomName(), entry));
+            }
+        }
+
+        // Method to relay a message published on this node to every node subscribed to the room.
+        public void relay(ChatRoomHandler room, HistoryEntry entry) {
+            if (room.remoteSubscribers.isEmpty()) {
+                return;
+            }
+            // Encoding once; every link shares the same buffer.
+            ByteBuffer frame = entryFrame(DELIVER, room.getRoomName(), entry);
+            for (String node : room.remoteSubscribers) {
+                send(node, frame);
+            }
+        }
+
+        // Method to handle a frame from another node; runs on that link's reader thread.
+        private void onFrame(ClusterLink link, int opcode, ByteBuffer body) {
+            String roomName = BinaryProtocol.readString(body);
+            if (opcode == SUBSCRIBE) {
+                acquireRoom(roomName).addSubscriber(link.nodeId);
+            } else if (opcode == UNSUBSCRIBE) {
+                ChatRoomHandler room = chatRooms.get(roomName);
+                if (room != null) {
+                    room.removeSubscriber(link.nodeId);
+                }
+            } else if (opcode == PUBLISH) {
+                // Publishing even if this node's view of the ring disagrees, so nothing is lost while rebalancing.
+                ChatRoomHandler room = acquireRoom(roomName);
+                room.publish(readEntry(body));
+                room.release();
+            } else if (opcode == DELIVER) {
+                ChatRoomHandler room = chatRooms.get(roomName);
+                if (room != null) {
+                    room.deliver(readEntry(body));
+                }
+            }
+        }
+
+        // Method to register a new link; only the link dialed by the node with the smaller ID survives when
+        // both nodes dial each other at once.
+        private synchronized void linkUp(ClusterLink link) {
+            ClusterLink existing = links.get(link.nodeId);
+            if (existing != null) {
+                if (link.dialed != selfId.compareTo(link.nodeId) < 0) {
+                    link.close();
+                } else {
+                    links.put(link.nodeId, link);
+                    existing.close();
+                    resubscribe(link.nodeId);
+                }
+                return;
+            }
+            links.put(link.nodeId, link);
+            knownNodes.add(link.nodeId);
+            System.out.println("Cluster node joined: " + link.nodeId);
+            rebuildRing();
+            rebalance();
+        }
+
+        // Method to drop a failed link and move its rooms to their new owners.
+        private synchronized void linkDown(ClusterLink link) {
+            if (!links.remove(link.nodeId, link)) {
+                return; // A duplicate link that lost the tie-break.
+            }
+            System.out.println("Cluster node left: " + link.nodeId);
+            for (ChatRoomHandler room : chatRooms.values()) {
+                room.removeSubscriber(link.nodeId);
+            }
+            rebuildRing();
+            rebalance();
+        }
+
+        // Method to subscribe again to every room a node owns, after its link was replaced: frames still queued on
+        // the closed link, subscriptions among them, were dropped with it. The owner ignores a repeated one.
+        private void resubscribe(String node) {
+            for (ChatRoomHandler room : chatRooms.values()) {
+                if (node.equals(room.ownerNode) && room.subscribed.compareAndSet(true, false)
+                        && room.getNumberOfClients() > 0) {
+                    roomJoined(room);
+                }
+            }
+        }
+
+        // Method to hand each room to its owner under the current ring. Only the owner tracks subscribers, so
+        // a node losing a room forgets them; every node with members re-subscribes to the new owner itself.
+        private void rebalance() {
+            for (ChatRoomHandler room : chatRooms.values()) {
+                String owner = ownerOf(room.getRoomName());
+                if (owner.equals(room.ownerNode)) {
+                    continue;
+                }
+                String previous = room.ownerNode;
+                room.ownerNode = owner;
+                room.subscribed.set(false);
+                if (selfId.equals(previous)) {
+                    for (String node : room.remoteSubscribers) {
+                        room.removeSubscriber(node);
+                    }
+                }
+                if (room.getNumberOfClients() > 0) {
+                    roomJoined(room);
+                }
+            }
+        }
+
+        // Method to rebuild the hash ring from this node and its live links.
+        private void rebuildRing() {
+            TreeMap<Long, String> rebuilt = new TreeMap<>();
+            List<String> nodes = new ArrayList<>(links.keySet());
+            nodes.add(selfId);
+            for (String node : nodes) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    rebuilt.put(hash(node + "#" + i), node);
+                }
+            }
+            ring = rebuilt;
+        }
+
+        // Method to dial every known node without a link; runs on the dialer thread.
+        private void dialMissing() {
+            for (String node : knownNodes) {
+                if (links.containsKey(node)) {
+                    continue;
+                }
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.socket().connect(address(node), 500);
+                    ClusterLink link = new ClusterLink(node, channel.socket(), true);
+                    link.send(roomFrame(NODE_HELLO, selfId)); // Same layout: a single string.
+                    linkUp(link);
+                    new Thread(link, "cluster-link-" + node).start();
+                } catch (IOException e) {
+                    // The node is not up (yet); try again on the next round.
+                }
+            }
+        }
+
+        // Method to read the hello of a node that dialed this one, then serve its link.
+        private void accept(Socket socket) {
+            try {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                int length = input.readInt();
+                byte[] frame = new byte[Math.min(Math.max(length, 1), 1024)];
+                input.readFully(frame);
+                ByteBuffer body = ByteBuffer.wrap(frame);
+                if ((body.get() & 0xFF) != NODE_HELLO) {
+                    socket.close();
+                    return;
+                }
+                ClusterLink link = new ClusterLink(BinaryProtocol.readString(body), socket, false);
+                linkUp(link);
+                link.run();
+            } catch (IOException | RuntimeException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do for a socket that fails to close.
+                }
+            }
+        }
+
+        // Method to queue a frame for a node, if it has a live link.
+        private void send(String node, ByteBuffer frame) {
+            ClusterLink link = node == null ? null : links.get(node);
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+
+        // Method to encode a frame carrying only a room name.
+        private static ByteBuffer roomFrame(int opcode, String roomName) {
+            byte[] room = BinaryProtocol.utf8(roomName);
+            ByteBuffer frame = BinaryProtocol.frame(opcode, 2 + room.length);
+            BinaryProtocol.putString(frame, room);
+            return frame.flip();
+        }
+
+        // Method to encode a frame carrying a room name and a message.
+        private static ByteBuffer entryFrame(int opcode, String roomName, HistoryEntry entry) {
+            byte[] room = BinaryProtocol.utf8(roomName);
+            byte[] sender = BinaryProtocol.utf8(entry.sender);
+            byte[] text = BinaryProtocol.utf8(entry.text);
+            ByteBuffer frame = BinaryProtocol.frame(opcode, 2 + room.length + 8 + 4 + 2 + sender.length + 2 + text.length);
+            BinaryProtocol.putString(frame, room);
+            frame.putLong(entry.millis).putInt(entry.senderId);
+            BinaryProtocol.putString(frame, sender);
+            BinaryProtocol.putString(frame, text);
+            return frame.flip().asReadOnlyBuffer();
+        }
+
+        // Method to decode the message following the room name of a PUBLISH or DELIVER frame.
+        private static HistoryEntry readEntry(ByteBuffer body) {
+            long millis = body.getLong();
+            int senderId = body.getInt();
+            String sender = BinaryProtocol.readString(body);
+            return new HistoryEntry(millis, senderId, sender, BinaryProtocol.readString(body));
+        }
+
+        // Method to parse a host:port address.
+        private static InetSocketAddress address(String hostAndPort) {
+            int colon = hostAndPort.lastIndexOf(':');
+            return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+        }
+
+        // Method to hash a key onto the ring (FNV-1a, then a 64-bit finalizer to spread nearby keys).
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    // Nested class for the link to one other cluster node: frames are queued on an outbox drained by a
+    // SocketWriter thread, and read by the thread running this link.
+    private static class ClusterLink implements Runnable {
+        // ID of the node at the other end.
+        private final String nodeId;
+        // Socket of the link.
+        private final Socket socket;
+        // Whether this node dialed the link, used to settle duplicate links.
+        private final boolean dialed;
+        // Queue of frames to the node; link traffic is never dropped.
+        private final Outbox outbox;
+
+        // Constructor for ClusterLink, starting its writer thread.
+        public ClusterLink(String nodeId, Socket socket, boolean dialed) {
+            this.nodeId = nodeId;
+            this.socket = socket;
+            this.dialed = dialed;
+            this.outbox = new Outbox(this::close);
+            this.outbox.setOwner("node " + nodeId);
+            Thread writerThread = new Thread(new SocketWriter(socket, outbox), "cluster-writer-" + nodeId);
+            outbox.setWakeup(() -> LockSupport.unpark(writerThread));
+            writerThread.start();
+        }
+
+        // Method to queue a frame for the node.
+        public void send(ByteBuffer frame) {
+            outbox.send(frame);
+        }
+
+        // Method to close the link; its reader then reports it down.
+        public void close() {
+            outbox.close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to do for a socket that fails to close.
+            }
+        }
+
+        // Run method for the link's reader thread.
+        public void run() {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                ByteBuffer frame = ByteBuffer.allocate(256);
+                while (true) {
+                    int length = input.readInt();
+                    if (length < 1 || length > 4 * MAX_LINE_LENGTH) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if (frame.capacity() < length) {
+                        frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+                    }
+                    input.readFully(frame.array(), 0, length);
+                    frame.clear().limit(length);
+                    cluster.onFrame(this, frame.get() & 0xFF, frame);
+                }
+            } catch (IOException | RuntimeException e) {
+                // The link is gone.
+            } finally {
+                close();
+                cluster.linkDown(this);
+            }
+        }
+    }
+
+    // Nested class for the chat message timestamp, formatted at most once per second instead of per message.
+    private static class MessageClock {
+        // Formatter for message timestamps; DateTimeFormatter is immutable and thread-safe.
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+        // Last formatted second, published as one immutable object.
+        private static volatile MessageClock cached = new MessageClock(-1, "");
+
+        // Epoch second the text was formatted for.
+        private final long second;
+        // Formatted time of day.
+        private final String text;
+
+        // Constructor for one cached timestamp.
+        private MessageClock(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+
+        // Method to format a given time as HH:mm:ss.
+        public static String format(long millis) {
+            return FORMAT.format(Instant.ofEpochMilli(millis));
+        }
+
+        // Method to get the current time of day as HH:mm:ss.
+        public static String now() {
+            long second = System.currentTimeMillis() / 1000;
+            MessageClock current = cached;
+            if (current.second != second) {
+                current = new MessageClock(second, FORMAT.format(Instant.ofEpochSecond(second)));
+                cached = current;
+            }
+            return current.text;
+        }
+    }
+
+    // Management interface of the server's metrics, registered with JMX as chat:type=Server.
+    public interface ServerMetricsMBean {
+        long getConnectedClients();
+        long getAcceptedConnections();
+        long getAcceptRate();
+        int getRoomCount();
+        long getMessagesIn();
+        long getMessagesOut();
+        long getOutboundBytes();
+        long getSocketWrites();
+        long getIdleDisconnects();
+        long getPendingTimers();
+        long getParkedSessions();
+        long getResumedSessions();
+        long getRejectedConnections();
+        long getThrottledMessages();
+        long getShedMessages();
+        long getFanoutLatencyP50Micros();
+        long getFanoutLatencyP99Micros();
+        long getSuppressedLogLines();
+    }
+
+    // Nested class for the server's metrics. Counters are LongAdders, so the hot paths only ever touch a
+    // per-thread cell; they are summed when read, by /stats, JMX or the plain-text endpoint on
+    // 127.0.0.1:METRICS_PORT/metrics.
+    static class Metrics implements ServerMetricsMBean {
+        // Port of the plain-text metrics endpoint on the loopback interface; negative disables it (-Dchat.metrics.port).
+        private static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", -1);
+        // Upper bounds of the room sizes that get their own fan-out latency histogram; the last one is open ended.
+        private static final int[] FANOUT_CLASSES = {10, 100, 1000, Integer.MAX_VALUE};
+
+        static final LongAdder connectedClients = new LongAdder();
+        static final LongAdder acceptedConnections = new LongAdder();
+        static final LongAdder messagesIn = new LongAdder();
+        static final LongAdder messagesOut = new LongAdder();
+        static final LongAdder outboundBytes = new LongAdder();
+        static final LongAdder socketWrites = new LongAdder();
+        static final LongAdder idleDisconnects = new LongAdder();
+        static final LongAdder parkedSessions = new LongAdder();
+        static final LongAdder resumedSessions = new LongAdder();
+        // Connections turned away at the limit, and messages dropped by the client and room rate limits.
+        static final LongAdder rejectedConnections = new LongAdder();
+        static final LongAdder throttledMessages = new LongAdder();
+        static final LongAdder shedMessages = new LongAdder();
+        // Time to queue one message for every member of a room, per room size class, in nanoseconds.
+        static final LatencyHistogram[] fanoutLatency = new LatencyHistogram[FANOUT_CLASSES.length];
+        // Connections accepted during the last full second, sampled once a second.
+        private static volatile long acceptRate;
+
+        static {
+            for (int i = 0; i < fanoutLatency.length; i++) {
+                fanoutLatency[i] = new LatencyHistogram();
+            }
+        }
+
+        // Method to register the JMX bean, start sampling the accept rate and open the endpoint if configured.
+        static void start() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(new Metrics(), ServerMetricsMBean.class), new ObjectName("chat:type=Server"));
+            } catch (JMException e) {
+                System.out.println("Could not register metrics with JMX: " + e.getMessage());
+            }
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long[] lastAccepted = new long[1];
+            sampler.scheduleAtFixedRate(() -> {
+                long accepted = acceptedConnections.sum();
+                acceptRate = accepted - lastAccepted[0];
+                lastAccepted[0] = accepted;
+            }, 1, 1, TimeUnit.SECONDS);
+
+            if (METRICS_PORT >= 0) {
+                try {
+                    HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+                    http.createContext("/metrics", exchange -> {
+                        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (OutputStream output = exchange.getResponseBody()) {
+                            output.write(body);
+                        }
+                    });
+                    http.setExecutor(sampler);
+                    http.start();
+                    System.out.println("Metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                            + http.getAddress().getPort() + "/metrics");
+                } catch (IOException e) {
+                    System.out.println("Could not open the metrics endpoint: " + e.getMessage());
+                }
+            }
+        }
+
+        // Method to get the histogram for a broadcast to the given number of members.
+        static LatencyHistogram fanoutLatencyFor(int members) {
+            int i = 0;
+            while (members > FANOUT_CLASSES[i]) {
+                i++;
+            }
+            return fanoutLatency[i];
+        }
+
+        // Method to describe a room size class for reports.
+        private static String fanoutClassName(int i) {
+            return i == FANOUT_CLASSES.length - 1
+                    ? "more than " + FANOUT_CLASSES[i - 1] + " members"
+                    : "up to " + FANOUT_CLASSES[i] + " members";
+        }
+
+        // Method to render every metric in the plain-text exposition format, one sample per line.
+        static String render() {
+            StringBuilder text = new StringBuilder();
+            text.append("chat_connected_clients ").append(connectedClients.sum()).append('\n');
+            text.append("chat_accepted_connections_total ").append(acceptedConnections.sum()).append('\n');
+            text.append("chat_accept_rate ").append(acceptRate).append('\n');
+            text.append("chat_rooms ").append(chatRooms.size()).append('\n');
+            text.append("chat_messages_in_total ").append(messagesIn.sum()).append('\n');
+            text.append("chat_messages_out_total ").append(messagesOut.sum()).append('\n');
+            text.append("chat_outbound_bytes_total ").append(outboundBytes.sum()).append('\n');
+            text.append("chat_socket_writes_total ").append(socketWrites.sum()).append('\n');
+            text.append("chat_idle_disconnects_total ").append(idleDisconnects.sum()).append('\n');
+            text.append("chat_pending_timers ").append(timers.getPending()).append('\n');
+            text.append("chat_parked_sessions ").append(parkedSessions.sum()).append('\n');
+            text.append("chat_resumed_sessions_total ").append(resumedSessions.sum()).append('\n');
+            text.append("chat_rejected_connections_total ").append(rejectedConnections.sum()).append('\n');
+            text.append("chat_throttled_messages_total ").append(throttledMessages.sum()).append('\n');
+            text.append("chat_shed_messages_total ").append(shedMessages.sum()).append('\n');
+            text.append("chat_log_lines_suppressed_total ").append(AsyncLogger.getSuppressed()).append('\n');
+            for (int i = 0; i < fanoutLatency.length; i++) {
+                String members = i == FANOUT_CLASSES.length - 1 ? "+Inf" : String.valueOf(FANOUT_CLASSES[i]);
+                LatencyHistogram histogram = fanoutLatency[i];
+                for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                    text.append("chat_fanout_latency_micros{members=\"").append(members).append("\",quantile=\"")
+                            .append(quantile).append("\"} ").append(histogram.percentile(quantile * 100) / 1000).append('\n');
+                }
+                text.append("chat_fanout_latency_micros_count{members=\"").append(members).append("\"} ")
+                        .append(histogram.getCount()).append('\n');
+            }
+            // The twenty outbound queues dropping the most, then deepest; clients only see their own, with /queues.
+            List<Outbox> ranked = new ArrayList<>(outboxes);
+            ranked.sort(Comparator.comparingLong(Outbox::getDropped).thenComparingInt(Outbox::getDepth).reversed());
+            for (Outbox client : ranked.subList(0, Math.min(20, ranked.size()))) {
+                String label = "{client=\"" + client.getOwner().replace("\\", "\\\\").replace("\"", "\\\"") + "\"} ";
+                text.append("chat_outbox_depth").append(label).append(client.getDepth()).append('\n');
+                text.append("chat_outbox_dropped_total").append(label).append(client.getDropped()).append('\n');
+            }
+            for (ChatRoomHandler room : chatRooms.values()) {
+                String label = "{room=\"" + room.getRoomName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"} ";
+                text.append("chat_room_messages_in_total").append(label).append(room.getMessagesIn()).append('\n');
+                text.append("chat_room_messages_out_total").append(label).append(room.getMessagesOut()).append('\n');
+                text.append("chat_room_clients").append(label).append(room.getNumberOfClients()).append('\n');
+            }
+            return text.toString();
+        }
+
+        // Method to write the /stats report, with the ten busiest rooms.
+        static void report(PrintWriter out) {
+            out.println("Server statistics:");
+            out.println(" - connected clients: " + connectedClients.sum());
+            out.println(" - accepted connections: " + acceptedConnections.sum() + " (" + acceptRate + "/s)");
+            out.println(" - rooms: " + chatRooms.size());
+            out.println(" - messages in: " + messagesIn.sum() + ", out: " + messagesOut.sum());
+            out.println(" - outbound bytes: " + outboundBytes.sum() + " in " + socketWrites.sum() + " writes");
+            out.println(" - idle disconnects: " + idleDisconnects.sum() + ", pending timers: " + timers.getPending());
+            out.println(" - parked sessions: " + parkedSessions.sum() + ", resumed: " + resumedSessions.sum());
+            out.println(" - rejected connections: " + rejectedConnections.sum() + ", messages throttled: "
+                    + throttledMessages.sum() + ", shed by busy rooms: " + shedMessages.sum());
+            out.println(" - log lines suppressed: " + AsyncLogger.getSuppressed());
+            for (int i = 0; i < fanoutLatency.length; i++) {
+                out.println(" - fan-out latency (us), " + fanoutClassName(i) + ": " + fanoutLatency[i].summary(1000));
+            }
+            List<ChatRoomHandler> rooms = new ArrayList<>(chatRooms.values());
+            rooms.sort(Comparator.comparingLong(ChatRoomHandler::getMessagesOut).reversed());
+            out.println("Busiest rooms:");
+            for (ChatRoomHandler room : rooms.subList(0, Math.min(10, rooms.size()))) {
+                out.println(" - " + room.getRoomName() + ": " + room.getNumberOfClients() + " users, "
+                        + room.getMessagesIn() + " messages in, " + room.getMessagesOut() + " out");
+            }
+        }
+
+        // Getter methods for JMX.
+        public long getConnectedClients() {
+            return connectedClients.sum();
+        }
+
+        public long getAcceptedConnections() {
+            return acceptedConnections.sum();
+        }
+
+        public long getAcceptRate() {
+            return acceptRate;
+        }
+
+        public int getRoomCount() {
+            return chatRooms.size();
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long getOutboundBytes() {
+            return outboundBytes.sum();
+        }
+
+        public long getSocketWrites() {
+            return socketWrites.sum();
+        }
+
+        public long getIdleDisconnects() {
+            return idleDisconnects.sum();
+        }
+
+        public long getPendingTimers() {
+            return timers.getPending();
+        }
+
+        public long getParkedSessions() {
+            return parkedSessions.sum();
+        }
+
+        public long getResumedSessions() {
+            return resumedSessions.sum();
+        }
+
+        public long getRejectedConnections() {
+            return rejectedConnections.sum();
+        }
+
+        public long getThrottledMessages() {
+            return throttledMessages.sum();
+        }
+
+        public long getShedMessages() {
+            return shedMessages.sum();
+        }
+
+        public long getFanoutLatencyP50Micros() {
+            return merged().percentile(50) / 1000;
+        }
+
+        public long getFanoutLatencyP99Micros() {
+            return merged().percentile(99) / 1000;
+        }
+
+        public long getSuppressedLogLines() {
+            return AsyncLogger.getSuppressed();
+        }
+
+        // Method to merge the fan-out histograms of every room size class.
+        private static LatencyHistogram merged() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram histogram : fanoutLatency) {
+                all.add(histogram);
+            }
+            return all;
+        }
+    }
+
+    // Nested class for diagnostic logging off the hot paths. Callers only offer a line to a bounded queue; a
+    // daemon thread prints at most LOG_RATE lines a second, and lines that do not fit in the queue are dropped and
+    // counted, so a connection storm can neither block on the console nor flood it.
+    static class AsyncLogger {
+        // Most lines printed per second (-Dchat.log.rate).
+        private static final int LOG_RATE = Integer.getInteger("chat.log.rate", 1000);
+        // Lines waiting to be printed.
+        private static final BlockingQueue<String> lines = new ArrayBlockingQueue<>(Integer.getInteger("chat.log.queue", 4096));
+        // Lines dropped because the queue was full, in total and since the last notice.
+        private static final LongAdder suppressed = new LongAdder();
+        private static long reported;
+
+        static {
+            Thread printer = new Thread(AsyncLogger::print, "async-logger");
+            printer.setDaemon(true);
+            printer.start();
+        }
+
+        // Method to log a line without waiting for the console.
+        public static void log(String line) {
+            if (!lines.offer(line)) {
+                suppressed.increment();
+            }
+        }
+
+        // Method to get the number of lines dropped so far.
+        public static long getSuppressed() {
+            return suppressed.sum();
+        }
+
+        // Run method for the printer thread: prints queued lines, pausing for the rest of the second once the
+        // rate is used up, and notes how many lines were dropped meanwhile.
+        private static void print() {
+            long windowStart = System.nanoTime();
+            int printed = 0;
+            try {
+                while (true) {
+                    String line = lines.take();
+                    long now = System.nanoTime();
+                    if (now - windowStart >= 1_000_000_000L || printed >= LOG_RATE) {
+                        if (printed >= LOG_RATE) {
+                            TimeUnit.NANOSECONDS.sleep(windowStart + 1_000_000_000L - now);
+                        }
+                        windowStart = System.nanoTime();
+                        printed = 0;
+                        long dropped = suppressed.sum();
+                        if (dropped != reported) {
+                            System.out.println("(" + (dropped - reported) + " log lines suppressed)");
+                            reported = dropped;
+                        }
+                    }
+                    System.out.println(line);
+                    printed++;
+                }
+            } catch (InterruptedException e) {
+                // The JVM is exiting.
+            }
+        }
+    }
+}